@@ -31,7 +31,8 @@ import javax.swing.*;
  * Run map computations in the background.
  * <p>
  * An instance of this class is used by the Map Explorer GUI to
- * run the LOS computation.
+ * run the LOS computation. A computation can be cancelled, so that
+ * a new one can be started without waiting for the old result.
  * 
  * @author Christoph Breitkopf
  */
@@ -43,6 +44,7 @@ public class ComputationThread extends Thread {
     private final MapExplorerModel model;
     private final LosCalculator losCalculator;
     private final Logger logger;
+    private volatile boolean cancelled;
     
     /**
      * Constructs and initializes a new LosComputation object.
@@ -60,7 +62,9 @@ public class ComputationThread extends Thread {
      */
     @Override
     public void run() {
-	model.clearLos();
+	// an update starts from the current LOS
+	if (!model.isLosUpdatePending())
+	    model.clearLos();
 	SwingUtilities.invokeLater(new Runnable() {
 	    public void run() {
 		app.setProgressMax(100);
@@ -71,7 +75,8 @@ public class ComputationThread extends Thread {
 	
 	Thread bgCalcLos = new Thread() {
 	    public void run() {
-	        model.computeLos();
+	        if (!model.computeLos())
+	            cancelled = true;
 	    }
 	};
 	bgCalcLos.start();
@@ -86,16 +91,49 @@ public class ComputationThread extends Thread {
 	    }
 	    SwingUtilities.invokeLater(new ProgressSetter(losCalculator.getPercentCompleted()));
 	}
+	if (cancelled)
+	    return;
 	long elapsedTime = (System.nanoTime() - startTime) / 1000000;
 	final String resultMsg = "LOS elapsed time: " + elapsedTime + "ms";
 	
 	SwingUtilities.invokeLater(new Runnable() {
 	    public void run() {
-		app.setBusy(false, resultMsg);
+		// a newer computation may have been started in the meantime
+		if (app.isCurrentComputation(ComputationThread.this))
+		    app.setBusy(false, resultMsg);
 	    }
 	});
     }
 
+    /**
+     * Cancel this computation and wait until it has stopped.
+     * <p>
+     * After this method returns, the model can be changed and a new
+     * computation can be started.
+     */
+    public void cancelAndWait() {
+	cancelled = true;
+	losCalculator.cancel();
+	boolean interrupted = false;
+	while (isAlive()) {
+	    try {
+		join();
+	    } catch (InterruptedException ex) {
+		interrupted = true;
+	    }
+	}
+	losCalculator.resetCancelled();
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return Returns <code>true</code> if this computation was cancelled.
+     */
+    public boolean isCancelled() {
+	return cancelled;
+    }
+
     /**
      * A Runnable to call the setProgress method of the application context
      * with a specific value.
@@ -0,0 +1,462 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+import java.util.logging.*;
+
+
+/**
+ * Compute line-of-sight between map squares by covering the parameter square.
+ * <p>
+ * LosTester tries lines from a point s on a diagonal of the source square to
+ * a point t on a diagonal of the target square, so each line is a point (s,t)
+ * of the unit square. The lines a wall blocks form a region of that square.
+ * Because the two diagonals are parallel, the orientation of a wall endpoint
+ * relative to the line is linear in s and t, and so is the orientation of
+ * the line endpoints relative to the wall. The region is therefore a union of
+ * at most four convex polygons, which are computed by clipping the unit square.
+ * Forest squares block like their diagonals, and the center checks for
+ * diagonal walls block strips of the square.
+ * <p>
+ * There is LOS if the polygons do not cover the unit square. This is decided
+ * by a sweep over s: between two adjacent vertices or edge crossings, the
+ * edges of the polygons keep their order, so it is enough to look at one s
+ * per slab. The cost depends on the number of walls, not on a number of
+ * samples.
+ * <p>
+ * As in ExactLosTester, every line found this way is checked with the same
+ * test LosTester uses, and no random tests are done.
+ */
+public class CoverageLosTester extends LosTester {
+
+    // line endpoints, as affine functions of s and t: x0, xs, xt, y0, ys, yt
+    private final double[] source = new double[6];
+    private final double[] target = new double[6];
+    private final double[] sourceCenter = new double[6];
+    private final double[] targetCenter = new double[6];
+
+    // linear forms a + b * s + c * t
+    private final double[][] forms = new double[4][3];
+
+    // the polygons, one after the other
+    private double[] polyS = new double[256];
+    private double[] polyT = new double[256];
+    private int numVertices;
+    private int[] polyStart = new int[33];
+    private int numPolygons;
+
+    // clipping buffers
+    private double[] clipS = new double[16];
+    private double[] clipT = new double[16];
+    private double[] bufS = new double[16];
+    private double[] bufT = new double[16];
+
+    private double[] events = new double[64];
+    private int numEvents;
+
+    // cross sections of the polygons at one s
+    private double[] starts = new double[32];
+    private double[] ends = new double[32];
+
+    private int slope;
+    private int x1;
+    private int y1;
+    private int x2;
+    private int y2;
+
+    /**
+     * Construct a new coverage LOS Tester.
+     * @param loc the Location to test LOS from
+     * @param size the size of the map
+     * @param walls the walls
+     * @param forestSquares the forest squares
+     * @param logger a Logger
+     */
+    public CoverageLosTester(Location loc, Dimension size, Set<Line> walls, Set<Location> forestSquares, Logger logger) {
+	super(loc, size, walls, forestSquares, 0, logger);
+    }
+
+    /**
+     * Construct a new coverage LOS Tester.
+     * @param loc the Location to test LOS from
+     * @param wallIndex the walls and forest squares of the map
+     * @param logger a Logger
+     */
+    public CoverageLosTester(Location loc, WallIndex wallIndex, Logger logger) {
+	super(loc, wallIndex, 0, logger);
+    }
+
+    /**
+     * Test two diagonals.
+     * @param loc target Location
+     * @param slope the slope. 0: ascending, 1: descending
+     * @return 0 if LOS was found, -1 otherwise.
+     */
+    @Override
+    protected int testEdges(Location loc, int slope) {
+	getRelevantWalls(loc);
+	this.slope = slope;
+	x1 = location.getColumn();
+	y1 = location.getRow();
+	x2 = loc.getColumn();
+	y2 = loc.getRow();
+
+	// Most visible squares are found right away.
+	if (testLine(0.5, 0.5))
+	    return 0;
+
+	final double dy = (slope == 0) ? 1 : -1;
+	final int d = (slope == 0) ? 0 : 1;
+	setPoint(source, x1, 1, 0, y1 + d, dy, 0);
+	setPoint(target, x2, 0, 1, y2 + d, 0, dy);
+	numVertices = 0;
+	numPolygons = 0;
+	for (Line w : walls) {
+	    Point a = w.getStart();
+	    Point b = w.getEnd();
+	    if (addRegion(source, target, a.getX(), a.getY(), b.getX(), b.getY()))
+		return -1;
+	}
+	if (forestSquares != null) {
+	    for (Location sq : forestSquares) {
+		// a line touches two edges of a square where it touches a diagonal,
+		// except for lines that end on an edge
+		int fx = sq.getColumn();
+		int fy = sq.getRow();
+		if (addRegion(source, target, fx, fy, fx + 1, fy + 1)
+		    || addRegion(source, target, fx, fy + 1, fx + 1, fy))
+		    return -1;
+	    }
+	}
+	if (haveDiagonalWalls) {
+	    // the points on the diagonals must see the centers of their squares
+	    setPoint(sourceCenter, x1 + 0.5, 0, 0, y1 + 0.5, 0, 0);
+	    setPoint(targetCenter, x2 + 0.5, 0, 0, y2 + 0.5, 0, 0);
+	    for (Line w : walls) {
+		Point a = w.getStart();
+		Point b = w.getEnd();
+		if (addRegion(sourceCenter, source, a.getX(), a.getY(), b.getX(), b.getY())
+		    || addRegion(targetCenter, target, a.getX(), a.getY(), b.getX(), b.getY()))
+		    return -1;
+	    }
+	}
+	computeEvents();
+	for (int i = 1; i < numEvents; i++) {
+	    double s0 = events[i - 1];
+	    double s1 = events[i];
+	    if (s0 < s1 && testSlab((s0 + s1) / 2))
+		return 0;
+	}
+	return -1;
+    }
+
+    private static void setPoint(double[] p, double x0, double xs, double xt, double y0, double ys, double yt) {
+	p[0] = x0;
+	p[1] = xs;
+	p[2] = xt;
+	p[3] = y0;
+	p[4] = ys;
+	p[5] = yt;
+    }
+
+    /**
+     * Check a line with the ordinary line test.
+     */
+    private boolean testLine(double s, double t) {
+	if (slope == 0)
+	    return los(x1, s, y1, s, x2, t, y2, t);
+	return los(x1, s, y1, 1 - s, x2, t, y2, 1 - t);
+    }
+
+    /**
+     * Add the region of the parameter square where the line from p to q
+     * touches the segment from a to b.
+     * <p>
+     * The line and the segment touch if p and q are not strictly on the
+     * same side of the segment, and a and b are not strictly on the same
+     * side of the line. Each side condition is a pair of linear forms, so
+     * the region is the union of the four polygons for the combinations of
+     * their signs.
+     *
+     * @return <code>true</code> if the region is the whole parameter square.
+     */
+    private boolean addRegion(double[] p, double[] q, double ax, double ay, double bx, double by) {
+	final double[] f1 = forms[0];
+	final double[] f2 = forms[1];
+	final double[] f3 = forms[2];
+	final double[] f4 = forms[3];
+	orientation(ax, ay, bx, by, p, f1);
+	orientation(ax, ay, bx, by, q, f2);
+	if (isZero(f1) && isZero(f2)) {
+	    // p and q move on the line through the segment: the line is
+	    // blocked if it overlaps the segment
+	    projection(ax, ay, bx, by, p, f1);
+	    projection(ax, ay, bx, by, q, f2);
+	    projection(bx, by, ax, ay, p, f3);
+	    projection(bx, by, ax, ay, q, f4);
+	    boolean full = false;
+	    for (int i = 0; i < 2; i++) {
+		for (int j = 2; j < 4; j++)
+		    full |= addPolygon(forms[i], 1, forms[j], 1, null, 0, null, 0);
+	    }
+	    return full;
+	}
+	lineOrientation(p, q, ax, ay, f3);
+	lineOrientation(p, q, bx, by, f4);
+	return addPolygon(f1, 1, f2, -1, f3, 1, f4, -1)
+	    | addPolygon(f1, 1, f2, -1, f3, -1, f4, 1)
+	    | addPolygon(f1, -1, f2, 1, f3, 1, f4, -1)
+	    | addPolygon(f1, -1, f2, 1, f3, -1, f4, 1);
+    }
+
+    private static boolean isZero(double[] f) {
+	return f[0] == 0 && f[1] == 0 && f[2] == 0;
+    }
+
+    /**
+     * Orientation of the point p relative to the line from a to b, as a linear form.
+     */
+    private static void orientation(double ax, double ay, double bx, double by, double[] p, double[] f) {
+	double ex = bx - ax;
+	double ey = by - ay;
+	f[0] = ex * (p[3] - ay) - ey * (p[0] - ax);
+	f[1] = ex * p[4] - ey * p[1];
+	f[2] = ex * p[5] - ey * p[2];
+    }
+
+    /**
+     * Projection of the point p onto the direction from a to b, relative to a.
+     */
+    private static void projection(double ax, double ay, double bx, double by, double[] p, double[] f) {
+	double ex = bx - ax;
+	double ey = by - ay;
+	f[0] = ex * (p[0] - ax) + ey * (p[3] - ay);
+	f[1] = ex * p[1] + ey * p[4];
+	f[2] = ex * p[2] + ey * p[5];
+    }
+
+    /**
+     * Orientation of the point a relative to the line from p to q, as a linear form.
+     * <p>
+     * This is the cross product of q - p and a - p. In general, it has
+     * terms in s*s, s*t and t*t, but they vanish here: either p is
+     * fixed, or p and q move in the same direction.
+     */
+    private static void lineOrientation(double[] p, double[] q, double ax, double ay, double[] f) {
+	// u = q - p, v = a - p
+	double ux = q[0] - p[0], uxs = q[1] - p[1], uxt = q[2] - p[2];
+	double uy = q[3] - p[3], uys = q[4] - p[4], uyt = q[5] - p[5];
+	double vx = ax - p[0], vxs = -p[1], vxt = -p[2];
+	double vy = ay - p[3], vys = -p[4], vyt = -p[5];
+	f[0] = ux * vy - uy * vx;
+	f[1] = uxs * vy + ux * vys - uys * vx - uy * vxs;
+	f[2] = uxt * vy + ux * vyt - uyt * vx - uy * vxt;
+    }
+
+    /**
+     * Clip the unit square to the half-planes sign * form &gt;= 0 and add
+     * the result, if it is not empty. A <code>null</code> form is ignored.
+     *
+     * @return <code>true</code> if the polygon is the whole square.
+     */
+    private boolean addPolygon(double[] f1, double g1, double[] f2, double g2,
+                               double[] f3, double g3, double[] f4, double g4) {
+	clipS[0] = 0; clipT[0] = 0;
+	clipS[1] = 1; clipT[1] = 0;
+	clipS[2] = 1; clipT[2] = 1;
+	clipS[3] = 0; clipT[3] = 1;
+	int n = clip(4, f1, g1);
+	n = clip(n, f2, g2);
+	n = clip(n, f3, g3);
+	n = clip(n, f4, g4);
+	if (n < 3)
+	    return false;
+	if (isUnitSquare(n))
+	    return true;
+	if (numVertices + n > polyS.length) {
+	    polyS = Arrays.copyOf(polyS, 2 * (numVertices + n));
+	    polyT = Arrays.copyOf(polyT, 2 * (numVertices + n));
+	}
+	System.arraycopy(clipS, 0, polyS, numVertices, n);
+	System.arraycopy(clipT, 0, polyT, numVertices, n);
+	if (numPolygons + 2 > polyStart.length)
+	    polyStart = Arrays.copyOf(polyStart, 2 * polyStart.length);
+	polyStart[numPolygons] = numVertices;
+	numVertices += n;
+	numPolygons++;
+	polyStart[numPolygons] = numVertices;
+	return false;
+    }
+
+    private boolean isUnitSquare(int n) {
+	if (n != 4)
+	    return false;
+	for (int i = 0; i < 4; i++) {
+	    if ((clipS[i] != 0 && clipS[i] != 1) || (clipT[i] != 0 && clipT[i] != 1))
+		return false;
+	}
+	return true;
+    }
+
+    /**
+     * Clip the polygon in clipS, clipT to sign * form &gt;= 0, with a form
+     * a + b * s + c * t.
+     * @return the number of vertices of the result
+     */
+    private int clip(int n, double[] form, double sign) {
+	if (form == null || n == 0)
+	    return n;
+	final double a = sign * form[0];
+	final double b = sign * form[1];
+	final double c = sign * form[2];
+	if (bufS.length < 2 * n) {
+	    bufS = new double[2 * n];
+	    bufT = new double[2 * n];
+	}
+	int m = 0;
+	for (int i = 0; i < n; i++) {
+	    int j = (i + 1 == n) ? 0 : i + 1;
+	    double vi = a + b * clipS[i] + c * clipT[i];
+	    double vj = a + b * clipS[j] + c * clipT[j];
+	    if (vi >= 0) {
+		bufS[m] = clipS[i];
+		bufT[m] = clipT[i];
+		m++;
+	    }
+	    if ((vi > 0 && vj < 0) || (vi < 0 && vj > 0)) {
+		double r = vi / (vi - vj);
+		bufS[m] = clipS[i] + r * (clipS[j] - clipS[i]);
+		bufT[m] = clipT[i] + r * (clipT[j] - clipT[i]);
+		m++;
+	    }
+	}
+	double[] tmp = clipS; clipS = bufS; bufS = tmp;
+	tmp = clipT; clipT = bufT; bufT = tmp;
+	return m;
+    }
+
+    /**
+     * Compute the sorted s values of all vertices and edge crossings.
+     */
+    private void computeEvents() {
+	numEvents = 0;
+	addEvent(0);
+	addEvent(1);
+	for (int i = 0; i < numVertices; i++) {
+	    if (polyS[i] > 0 && polyS[i] < 1)
+		addEvent(polyS[i]);
+	}
+	for (int p = 0; p < numPolygons; p++) {
+	    for (int i = polyStart[p]; i < polyStart[p + 1]; i++) {
+		int i2 = (i + 1 == polyStart[p + 1]) ? polyStart[p] : i + 1;
+		for (int q = p + 1; q < numPolygons; q++) {
+		    for (int j = polyStart[q]; j < polyStart[q + 1]; j++) {
+			int j2 = (j + 1 == polyStart[q + 1]) ? polyStart[q] : j + 1;
+			addCrossing(i, i2, j, j2);
+		    }
+		}
+	    }
+	}
+	Arrays.sort(events, 0, numEvents);
+    }
+
+    /**
+     * Add the s value where the edges from i to i2 and from j to j2 cross.
+     */
+    private void addCrossing(int i, int i2, int j, int j2) {
+	double as = polyS[i], at = polyT[i];
+	double bs = polyS[i2], bt = polyT[i2];
+	double cs = polyS[j], ct = polyT[j];
+	double ds = polyS[j2], dt = polyT[j2];
+	// bounding boxes first
+	if (Math.max(as, bs) < Math.min(cs, ds) || Math.max(cs, ds) < Math.min(as, bs)
+	    || Math.max(at, bt) < Math.min(ct, dt) || Math.max(ct, dt) < Math.min(at, bt))
+	    return;
+	double es = bs - as, et = bt - at;
+	double fs = ds - cs, ft = dt - ct;
+	double denom = es * ft - et * fs;
+	if (denom == 0)
+	    return;
+	double u = ((cs - as) * ft - (ct - at) * fs) / denom;
+	if (u <= 0 || u >= 1)
+	    return;
+	double s = as + u * es;
+	if (s > 0 && s < 1)
+	    addEvent(s);
+    }
+
+    private void addEvent(double s) {
+	if (numEvents == events.length)
+	    events = Arrays.copyOf(events, 2 * numEvents);
+	events[numEvents++] = s;
+    }
+
+    /**
+     * Look for a gap in the cross sections of the polygons at s.
+     * @return <code>true</code> if an unblocked line was found.
+     */
+    private boolean testSlab(double s) {
+	if (starts.length < numPolygons) {
+	    starts = new double[numPolygons];
+	    ends = new double[numPolygons];
+	}
+	int n = 0;
+	for (int p = 0; p < numPolygons; p++) {
+	    double lo = Double.POSITIVE_INFINITY;
+	    double hi = Double.NEGATIVE_INFINITY;
+	    for (int i = polyStart[p]; i < polyStart[p + 1]; i++) {
+		int j = (i + 1 == polyStart[p + 1]) ? polyStart[p] : i + 1;
+		double si = polyS[i];
+		double sj = polyS[j];
+		if ((si <= s && s <= sj) || (sj <= s && s <= si)) {
+		    double t = (si == sj) ? polyT[i] : polyT[i] + (s - si) / (sj - si) * (polyT[j] - polyT[i]);
+		    lo = Math.min(lo, t);
+		    hi = Math.max(hi, t);
+		}
+	    }
+	    if (lo <= hi) {
+		starts[n] = lo;
+		ends[n] = hi;
+		n++;
+	    }
+	}
+	if (n == 0)
+	    return testLine(s, 0.5);
+	// The union of closed intervals has a gap between the i-th smallest
+	// end and the (i+1)-th smallest start if the end is smaller.
+	Arrays.sort(starts, 0, n);
+	Arrays.sort(ends, 0, n);
+	if (starts[0] > 0 && testLine(s, starts[0] / 2))
+	    return true;
+	for (int i = 0; i < n - 1; i++) {
+	    if (ends[i] < starts[i + 1] && testLine(s, (ends[i] + starts[i + 1]) / 2))
+		return true;
+	}
+	return ends[n - 1] < 1 && testLine(s, (ends[n - 1] + 1) / 2);
+    }
+
+}
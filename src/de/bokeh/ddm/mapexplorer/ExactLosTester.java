@@ -0,0 +1,437 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+import java.util.logging.*;
+
+
+/**
+ * Compute line-of-sight between map squares exactly.
+ * <p>
+ * Like LosTester, this looks for an unblocked line from a point on a diagonal
+ * of the source square to a point on a diagonal of the target square. Instead
+ * of trying a fixed grid of offsets, it enumerates the <em>critical lines</em>:
+ * lines through two wall endpoints, forest square corners or target square
+ * corners that cross both diagonals. Between two adjacent points where critical
+ * lines cross the source diagonal, the shadows the walls cast onto the target
+ * diagonal keep their order. So it is enough to test one source point per
+ * interval. For that point, the blocked part of the target diagonal is a union
+ * of closed intervals, and any gap is an unblocked line.
+ * <p>
+ * Every line found this way is checked with the same test LosTester uses, so
+ * this tester never reports LOS the sampling tester would reject for that line.
+ * No random tests are done.
+ */
+public class ExactLosTester extends LosTester {
+
+    // source diagonal: (k0x + s, k0y + dy * s), target diagonal: (l0x + t, l0y + dy * t)
+    private double k0x;
+    private double k0y;
+    private double l0x;
+    private double l0y;
+    private double dy;
+
+    // blocked intervals on the target diagonal
+    private double[] starts = new double[32];
+    private double[] ends = new double[32];
+    private int numIntervals;
+
+    // fixed intervals blocked by the target center check
+    private double[] centerStarts = new double[8];
+    private double[] centerEnds = new double[8];
+    private int numCenterIntervals;
+
+    // shadows of the edges of a forest square
+    private final double[] edgeStarts = new double[4];
+    private final double[] edgeEnds = new double[4];
+    private final boolean[] edgeHit = new boolean[4];
+
+    // result of shadow()
+    private double shadowStart;
+    private double shadowEnd;
+
+    private double[] pointsX = new double[64];
+    private double[] pointsY = new double[64];
+    private int numPoints;
+
+    private double[] critical = new double[64];
+    private int numCritical;
+
+    /**
+     * Construct a new exact LOS Tester.
+     * @param loc the Location to test LOS from
+     * @param size the size of the map
+     * @param walls the walls
+     * @param forestSquares the forest squares
+     * @param logger a Logger
+     */
+    public ExactLosTester(Location loc, Dimension size, Set<Line> walls, Set<Location> forestSquares, Logger logger) {
+	super(loc, size, walls, forestSquares, 0, logger);
+    }
+
+    /**
+     * Construct a new exact LOS Tester.
+     * @param loc the Location to test LOS from
+     * @param wallIndex the walls and forest squares of the map
+     * @param logger a Logger
+     */
+    public ExactLosTester(Location loc, WallIndex wallIndex, Logger logger) {
+	super(loc, wallIndex, 0, logger);
+    }
+
+    /**
+     * Test two diagonals.
+     * @param loc target Location
+     * @param slope the slope. 0: ascending, 1: descending
+     * @return 0 if LOS was found, -1 otherwise.
+     */
+    @Override
+    protected int testEdges(Location loc, int slope) {
+	getRelevantWalls(loc);
+
+	final int x1 = location.getColumn();
+	final int y1 = location.getRow();
+	final int x2 = loc.getColumn();
+	final int y2 = loc.getRow();
+	k0x = x1;
+	l0x = x2;
+	if (slope == 0) {
+	    k0y = y1;
+	    l0y = y2;
+	    dy = 1;
+	} else {
+	    k0y = y1 + 1;
+	    l0y = y2 + 1;
+	    dy = -1;
+	}
+
+	numCenterIntervals = 0;
+	if (haveDiagonalWalls) {
+	    double cx = x2 + 0.5;
+	    double cy = y2 + 0.5;
+	    for (Line w : walls) {
+		Point a = w.getStart();
+		Point b = w.getEnd();
+		if (shadow(cx, cy, a.getX(), a.getY(), b.getX(), b.getY()))
+		    addCenterInterval(shadowStart, shadowEnd);
+	    }
+	}
+
+	// Most visible squares are found right away.
+	if (testSourcePoint(0.5, x1, y1, x2, y2, slope))
+	    return 0;
+
+	computeCriticalPoints(x1 + 0.5, y1 + 0.5);
+	for (int i = 1; i < numCritical; i++) {
+	    double s0 = critical[i - 1];
+	    double s1 = critical[i];
+	    if (s0 < s1 && testSourcePoint((s0 + s1) / 2, x1, y1, x2, y2, slope))
+		return 0;
+	}
+	return -1;
+    }
+
+    /**
+     * Test all lines from a single point on the source diagonal.
+     * @return <code>true</code> if an unblocked line was found.
+     */
+    private boolean testSourcePoint(double s, int x1, int y1, int x2, int y2, int slope) {
+	final double px = k0x + s;
+	final double py = k0y + dy * s;
+	if (haveDiagonalWalls) {
+	    double cx = x1 + 0.5;
+	    double cy = y1 + 0.5;
+	    for (Line w : walls) {
+		if (w.intersectsOrCoincides(px, py, cx, cy))
+		    return false;
+	    }
+	}
+
+	numIntervals = 0;
+	for (Line w : walls) {
+	    Point a = w.getStart();
+	    Point b = w.getEnd();
+	    if (shadow(px, py, a.getX(), a.getY(), b.getX(), b.getY()))
+		addInterval(shadowStart, shadowEnd);
+	}
+	if (forestSquares != null) {
+	    final double[] es = edgeStarts;
+	    final double[] ee = edgeEnds;
+	    final boolean[] hit = edgeHit;
+	    for (Location sq : forestSquares) {
+		final int fx = sq.getColumn();
+		final int fy = sq.getRow();
+		hit[0] = shadow(px, py, fx, fy, fx + 1, fy);
+		es[0] = shadowStart; ee[0] = shadowEnd;
+		hit[1] = shadow(px, py, fx, fy, fx, fy + 1);
+		es[1] = shadowStart; ee[1] = shadowEnd;
+		hit[2] = shadow(px, py, fx + 1, fy, fx + 1, fy + 1);
+		es[2] = shadowStart; ee[2] = shadowEnd;
+		hit[3] = shadow(px, py, fx, fy + 1, fx + 1, fy + 1);
+		es[3] = shadowStart; ee[3] = shadowEnd;
+		// blocked where the line touches at least two edges
+		for (int i = 0; i < 4; i++) {
+		    if (!hit[i])
+			continue;
+		    for (int j = i + 1; j < 4; j++) {
+			if (hit[j])
+			    addInterval(Math.max(es[i], es[j]), Math.min(ee[i], ee[j]));
+		    }
+		}
+	    }
+	}
+	for (int i = 0; i < numCenterIntervals; i++)
+	    addInterval(centerStarts[i], centerEnds[i]);
+
+	// The union of closed intervals has a gap between the i-th smallest
+	// end and the (i+1)-th smallest start if the end is smaller.
+	final int n = numIntervals;
+	if (n == 0)
+	    return testLine(s, 0.5, x1, y1, x2, y2, slope);
+	Arrays.sort(starts, 0, n);
+	Arrays.sort(ends, 0, n);
+	if (starts[0] > 0 && testLine(s, starts[0] / 2, x1, y1, x2, y2, slope))
+	    return true;
+	for (int i = 0; i < n - 1; i++) {
+	    if (ends[i] < starts[i + 1] && testLine(s, (ends[i] + starts[i + 1]) / 2, x1, y1, x2, y2, slope))
+		return true;
+	}
+	return ends[n - 1] < 1 && testLine(s, (ends[n - 1] + 1) / 2, x1, y1, x2, y2, slope);
+    }
+
+    /**
+     * Check a line found in a gap with the ordinary line test.
+     */
+    private boolean testLine(double s, double t, int x1, int y1, int x2, int y2, int slope) {
+	if (slope == 0)
+	    return los(x1, s, y1, s, x2, t, y2, t);
+	return los(x1, s, y1, 1 - s, x2, t, y2, 1 - t);
+    }
+
+    private void addInterval(double start, double end) {
+	if (start < 0)
+	    start = 0;
+	if (end > 1)
+	    end = 1;
+	if (start > end)
+	    return;
+	if (numIntervals == starts.length) {
+	    starts = Arrays.copyOf(starts, 2 * numIntervals);
+	    ends = Arrays.copyOf(ends, 2 * numIntervals);
+	}
+	starts[numIntervals] = start;
+	ends[numIntervals] = end;
+	numIntervals++;
+    }
+
+    private void addCenterInterval(double start, double end) {
+	if (start < 0)
+	    start = 0;
+	if (end > 1)
+	    end = 1;
+	if (start > end)
+	    return;
+	if (numCenterIntervals == centerStarts.length) {
+	    centerStarts = Arrays.copyOf(centerStarts, 2 * numCenterIntervals);
+	    centerEnds = Arrays.copyOf(centerEnds, 2 * numCenterIntervals);
+	}
+	centerStarts[numCenterIntervals] = start;
+	centerEnds[numCenterIntervals] = end;
+	numCenterIntervals++;
+    }
+
+    /**
+     * Compute the part of the target diagonal a wall hides from a point.
+     * <p>
+     * The line from p to q(t) touches the wall from a to b exactly if q(t)
+     * lies in the angle a-p-b and not on the same side of the wall as p.
+     * Each of these conditions is linear in t, so the result is a closed
+     * interval, stored in shadowStart and shadowEnd.
+     *
+     * @return <code>false</code> if the wall hides no part of the diagonal.
+     */
+    private boolean shadow(double px, double py, double ax, double ay, double bx, double by) {
+	double sigma = orient(ax, ay, bx, by, px, py);
+	shadowStart = Double.NEGATIVE_INFINITY;
+	shadowEnd = Double.POSITIVE_INFINITY;
+	if (sigma == 0) {
+	    // p is on the line through the wall, so only the wall itself blocks
+	    return (px - ax) * (px - bx) + (py - ay) * (py - by) <= 0;
+	}
+	double g = (sigma > 0) ? 1 : -1;
+	// q(t) is not on the same side of the wall as p
+	if (!constrain(-g * orient(ax, ay, bx, by, l0x, l0y), -g * cross(bx - ax, by - ay, 1, dy)))
+	    return false;
+	// q(t) is in the angle a-p-b
+	if (!constrain(g * cross(ax - px, ay - py, l0x - px, l0y - py), g * cross(ax - px, ay - py, 1, dy)))
+	    return false;
+	if (!constrain(-g * cross(bx - px, by - py, l0x - px, l0y - py), -g * cross(bx - px, by - py, 1, dy)))
+	    return false;
+	return shadowStart <= shadowEnd;
+    }
+
+    /**
+     * Restrict the shadow interval to alpha + beta * t >= 0.
+     * @return <code>false</code> if the condition cannot be met.
+     */
+    private boolean constrain(double alpha, double beta) {
+	if (beta > 0) {
+	    double t = -alpha / beta;
+	    if (t > shadowStart)
+		shadowStart = t;
+	} else if (beta < 0) {
+	    double t = -alpha / beta;
+	    if (t < shadowEnd)
+		shadowEnd = t;
+	} else if (alpha < 0) {
+	    return false;
+	}
+	return true;
+    }
+
+    /**
+     * Compute the sorted critical points on the source diagonal.
+     * <p>
+     * These are the points where the order of the shadow interval
+     * ends can change.
+     */
+    private void computeCriticalPoints(double cx, double cy) {
+	numCritical = 0;
+	addCritical(0);
+	addCritical(1);
+
+	numPoints = 0;
+	addPoint(l0x, l0y);
+	addPoint(l0x + 1, l0y + dy);
+	for (Line w : walls)
+	    addSegment(w.getStart(), w.getEnd());
+	if (forestSquares != null) {
+	    for (Location sq : forestSquares) {
+		Point bl = new Point(sq.getColumn(), sq.getRow());
+		Point br = new Point(sq.getColumn() + 1, sq.getRow());
+		Point tl = new Point(sq.getColumn(), sq.getRow() + 1);
+		Point tr = new Point(sq.getColumn() + 1, sq.getRow() + 1);
+		addSegment(bl, br);
+		addSegment(bl, tl);
+		addSegment(br, tr);
+		addSegment(tl, tr);
+	    }
+	}
+	for (int i = 0; i < numCenterIntervals; i++) {
+	    addPoint(l0x + centerStarts[i], l0y + dy * centerStarts[i]);
+	    addPoint(l0x + centerEnds[i], l0y + dy * centerEnds[i]);
+	}
+
+	final int n = numPoints;
+	for (int i = 0; i < n; i++) {
+	    double ux = pointsX[i];
+	    double uy = pointsY[i];
+	    // points on the source diagonal itself
+	    if (cross(ux - k0x, uy - k0y, 1, dy) == 0 && ux > k0x && ux < k0x + 1)
+		addCritical(ux - k0x);
+	    if (haveDiagonalWalls)
+		addLineCritical(cx, cy, ux, uy, false);
+	    for (int j = i + 1; j < n; j++)
+		addLineCritical(ux, uy, pointsX[j], pointsY[j], true);
+	}
+	Arrays.sort(critical, 0, numCritical);
+    }
+
+    private void addSegment(Point a, Point b) {
+	double ax = a.getX();
+	double ay = a.getY();
+	double bx = b.getX();
+	double by = b.getY();
+	addPoint(ax, ay);
+	addPoint(bx, by);
+	// where the source point crosses the line through the segment
+	addLineCritical(ax, ay, bx, by, false);
+	// where the line through the segment crosses the target diagonal
+	double ex = bx - ax;
+	double ey = by - ay;
+	double denom = cross(ex, ey, 1, dy);
+	if (denom != 0) {
+	    double t = -cross(ex, ey, l0x - ax, l0y - ay) / denom;
+	    if (t >= 0 && t <= 1)
+		addPoint(l0x + t, l0y + dy * t);
+	}
+    }
+
+    /**
+     * Add the point where the line through u and v crosses the source diagonal.
+     * @param mustCrossTarget only add it if the line also crosses the target diagonal.
+     */
+    private void addLineCritical(double ux, double uy, double vx, double vy, boolean mustCrossTarget) {
+	double ex = vx - ux;
+	double ey = vy - uy;
+	double denom = cross(ex, ey, 1, dy);
+	if (denom == 0)
+	    return;
+	double s = -cross(ex, ey, k0x - ux, k0y - uy) / denom;
+	if (s <= 0 || s >= 1)
+	    return;
+	if (mustCrossTarget) {
+	    double t = -cross(ex, ey, l0x - ux, l0y - uy) / denom;
+	    if (t < 0 || t > 1)
+		return;
+	}
+	addCritical(s);
+    }
+
+    private void addCritical(double s) {
+	if (numCritical == critical.length)
+	    critical = Arrays.copyOf(critical, 2 * numCritical);
+	critical[numCritical++] = s;
+    }
+
+    private void addPoint(double x, double y) {
+	for (int i = 0; i < numPoints; i++) {
+	    if (pointsX[i] == x && pointsY[i] == y)
+		return;
+	}
+	if (numPoints == pointsX.length) {
+	    pointsX = Arrays.copyOf(pointsX, 2 * numPoints);
+	    pointsY = Arrays.copyOf(pointsY, 2 * numPoints);
+	}
+	pointsX[numPoints] = x;
+	pointsY[numPoints] = y;
+	numPoints++;
+    }
+
+    private static double cross(double ax, double ay, double bx, double by) {
+	return ax * by - ay * bx;
+    }
+
+    /**
+     * Orientation of the point c relative to the line from a to b.
+     * @return a positive value if c is left of the line, a negative value if
+     * c is right of the line, and 0 if c is on the line.
+     */
+    private static double orient(double ax, double ay, double bx, double by, double cx, double cy) {
+	return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+
+}
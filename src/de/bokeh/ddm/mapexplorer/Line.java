@@ -24,6 +24,7 @@
 
 package de.bokeh.ddm.mapexplorer;
 
+import java.math.BigDecimal;
 
 /**
  * A line segment.
@@ -35,6 +36,27 @@ package de.bokeh.ddm.mapexplorer;
  */
 public class Line {
 
+    /**
+     * Relative error bound for the terms of the intersection test.
+     * <p>
+     * A difference of two products of coordinate differences, as computed
+     * in <code>intersectsOrCoincides</code>, differs from the exact value
+     * by at most (3 + 16&epsilon;)&epsilon; times the sum of the absolute
+     * values of the products, with &epsilon; = 2<sup>-53</sup> (Shewchuk,
+     * "Adaptive Precision Floating-Point Arithmetic and Fast Robust
+     * Geometric Predicates"). 4&epsilon; is a bit larger, so that it also
+     * covers the rounding in the computation of the bounds and in the
+     * comparisons of the numerators with the denominator.
+     */
+    static final double ERR_BOUND = 0x1p-51;
+
+    /** Result of <code>filteredIntersection</code>: the lines certainly do not meet. */
+    static final int DISJOINT = 0;
+    /** Result of <code>filteredIntersection</code>: the lines certainly meet. */
+    static final int INTERSECTING = 1;
+    /** Result of <code>filteredIntersection</code>: exact arithmetic is needed. */
+    static final int UNCERTAIN = 2;
+
     private final double startX;
     private final double startY;
     private final double endX;
@@ -166,6 +188,26 @@ public class Line {
      * @return true if ln intersects or coincides with this line.
      */
     public boolean intersectsOrCoincides(double x3, double y3, double x4, double y4) {
+	return intersectsOrCoincides(startX, startY, endX, endY, x3, y3, x4, y4);
+    }
+    
+    /**
+     * Compute line intersection for two lines given by their coordinates.
+     * <p>
+     * Same as <code>new Line(startX, startY, endX, endY).intersectsOrCoincides(x3, y3, x4, y4)</code>,
+     * but does not need a Line object. The start and end point must be
+     * ordered as in a Line.
+     * <p>
+     * The result is exact: the test is done in double arithmetic first,
+     * and only if one of the values it depends on is too close to zero
+     * for its sign to be certain, it is done again with
+     * <code>intersectsOrCoincidesExact</code>. This matters for lines
+     * that just touch a wall, or run along it, which must block LOS.
+     * 
+     * @return true if the lines intersect or coincide.
+     */
+    static boolean intersectsOrCoincides(double startX, double startY, double endX, double endY,
+                                         double x3, double y3, double x4, double y4) {
         double dx = endX - startX;
         double dy = endY - startY;
         double dx2 = x4 - x3;
@@ -173,21 +215,136 @@ public class Line {
 	
         double d1 = startY - y3;
         double d2 = startX - x3;
-	double denom = dy2 * dx - dx2 * dy;
-	double num_Ua = dx2 * d1 - dy2 * d2;
-	double num_Ub = dx * d1 - dy * d2;
-	
-        if (denom > 0) {
-            return (num_Ua >= 0 && num_Ua <= denom && num_Ub >= 0 && num_Ub <= denom);
-        }
+	double t1 = dy2 * dx;
+	double t2 = dx2 * dy;
+	double t3 = dx2 * d1;
+	double t4 = dy2 * d2;
+	double t5 = dx * d1;
+	double t6 = dy * d2;
+	switch (filteredIntersection(t1 - t2, t3 - t4, t5 - t6,
+	                             ERR_BOUND * (Math.abs(t1) + Math.abs(t2)),
+	                             ERR_BOUND * (Math.abs(t3) + Math.abs(t4)),
+	                             ERR_BOUND * (Math.abs(t5) + Math.abs(t6)))) {
+	case INTERSECTING:
+	    return true;
+	case DISJOINT:
+	    return false;
+	default:
+	    return intersectsOrCoincidesExact(startX, startY, endX, endY, x3, y3, x4, y4);
+	}
+    }
+
+    /**
+     * The filter of <code>intersectsOrCoincides</code>.
+     * <p>
+     * The lines meet if both numerators lie between zero and the
+     * denominator. Each of these comparisons is only decided here if
+     * the difference is larger than its error bound.
+     * <p>
+     * The error bound of a value computed from the products
+     * <code>t1 - t2</code> is <code>ERR_BOUND * (|t1| + |t2|)</code>.
+     * A bound that holds for all values, if no coordinate is larger
+     * than some maximum, is returned by <code>errorBound</code>.
+     * 
+     * @param denom the denominator
+     * @param numUa the numerator of ua
+     * @param numUb the numerator of ub
+     * @param errDenom the error bound of denom
+     * @param errUa the error bound of numUa
+     * @param errUb the error bound of numUb
+     * @return DISJOINT or INTERSECTING if the result is certain,
+     *   UNCERTAIN otherwise.
+     */
+    static int filteredIntersection(double denom, double numUa, double numUb,
+                                    double errDenom, double errUa, double errUb) {
 	if (denom < 0) {
-            return (num_Ua <= 0 && num_Ua >= denom && num_Ub <= 0 && num_Ub >= denom);
+	    denom = -denom;
+	    numUa = -numUa;
+	    numUb = -numUb;
+	}
+	if (!(denom > errDenom)) {
+	    // maybe parallel: the lines can only meet if the numerators are small, too
+	    if (Math.abs(numUa) > denom + errDenom + errUa || Math.abs(numUb) > denom + errDenom + errUb)
+		return DISJOINT;
+	    return UNCERTAIN;
+	}
+	if (numUa < -errUa || numUb < -errUb)
+	    return DISJOINT;
+	double restUa = denom - numUa;
+	double restUb = denom - numUb;
+	double errRestUa = errDenom + errUa;
+	double errRestUb = errDenom + errUb;
+	if (restUa < -errRestUa || restUb < -errRestUb)
+	    return DISJOINT;
+	if (numUa > errUa && numUb > errUb && restUa > errRestUa && restUb > errRestUb)
+	    return INTERSECTING;
+	return UNCERTAIN;
+    }
+
+    /**
+     * Compute an error bound for <code>filteredIntersection</code> that
+     * holds for all lines with coordinates of at most maxCoord in
+     * absolute value: the coordinate differences are at most 2 maxCoord,
+     * so each of the two products is at most 4 maxCoord<sup>2</sup>.
+     * 
+     * @param maxCoord the largest absolute value of a coordinate
+     * @return an error bound for the denominator and the numerators
+     */
+    static double errorBound(double maxCoord) {
+	return ERR_BOUND * 8 * maxCoord * maxCoord;
+    }
+
+    /**
+     * <code>intersectsOrCoincides</code> in exact arithmetic.
+     * <p>
+     * If all coordinates are exactly representable in the fixed point
+     * format of SegmentKernel, which is the case for the walls of all
+     * maps and the usual sample points, the test is done with
+     * <code>long</code> values. Otherwise, it is done with BigDecimal:
+     * every double value is exactly representable as a BigDecimal, and
+     * so are their sums and products.
+     * 
+     * @return true if the lines intersect or coincide.
+     */
+    static boolean intersectsOrCoincidesExact(double startX, double startY, double endX, double endY,
+                                              double x3, double y3, double x4, double y4) {
+	final double one = SegmentKernel.FIXED_ONE;
+	if (SegmentKernel.isFixed(startX * one) && SegmentKernel.isFixed(startY * one)
+	    && SegmentKernel.isFixed(endX * one) && SegmentKernel.isFixed(endY * one)
+	    && SegmentKernel.isFixed(x3 * one) && SegmentKernel.isFixed(y3 * one)
+	    && SegmentKernel.isFixed(x4 * one) && SegmentKernel.isFixed(y4 * one)) {
+	    return SegmentKernel.intersectsOrCoincides((long) (startX * one), (long) (startY * one),
+	                                               (long) (endX * one), (long) (endY * one),
+	                                               (long) (x3 * one), (long) (y3 * one),
+	                                               (long) (x4 * one), (long) (y4 * one));
+	}
+	BigDecimal sx = new BigDecimal(startX);
+	BigDecimal sy = new BigDecimal(startY);
+	BigDecimal ax = new BigDecimal(x3);
+	BigDecimal ay = new BigDecimal(y3);
+	BigDecimal dx = new BigDecimal(endX).subtract(sx);
+	BigDecimal dy = new BigDecimal(endY).subtract(sy);
+	BigDecimal dx2 = new BigDecimal(x4).subtract(ax);
+	BigDecimal dy2 = new BigDecimal(y4).subtract(ay);
+	BigDecimal d1 = sy.subtract(ay);
+	BigDecimal d2 = sx.subtract(ax);
+	BigDecimal denom = dy2.multiply(dx).subtract(dx2.multiply(dy));
+	BigDecimal numUa = dx2.multiply(d1).subtract(dy2.multiply(d2));
+	BigDecimal numUb = dx.multiply(d1).subtract(dy.multiply(d2));
+	if (denom.signum() < 0) {
+	    denom = denom.negate();
+	    numUa = numUa.negate();
+	    numUb = numUb.negate();
+	}
+	if (denom.signum() > 0) {
+	    return numUa.signum() >= 0 && numUa.compareTo(denom) <= 0
+	        && numUb.signum() >= 0 && numUb.compareTo(denom) <= 0;
 	}
 	// denom == 0
-	if (num_Ua == 0 && num_Ub == 0) {
+	if (numUa.signum() == 0 && numUb.signum() == 0) {
 	    if (Point.compare(x3, y3, x4, y4) > 0)
-	        return coincidentWithOverlap(startX, startY, endX, endY, x4, y4, x3, y3);
-	    return coincidentWithOverlap(startX, startY, endX, endY, x3, y3, x4, y4);
+	        return coincidentWithOverlapExact(startX, startY, endX, endY, x4, y4, x3, y3);
+	    return coincidentWithOverlapExact(startX, startY, endX, endY, x3, y3, x4, y4);
 	}
 	return false;
     }
@@ -309,19 +466,24 @@ public class Line {
 
     
     public boolean intersectsSquareAsPerForest(Location loc) {
-	int x = loc.getColumn();
-	int y = loc.getRow();
-
-	boolean hadIntersection = intersectsOrCoincides(x, y, x+1, y);
-	if (intersectsOrCoincides(x, y, x, y+1)) {
+	return intersectsSquareAsPerForest(startX, startY, endX, endY, loc.getColumn(), loc.getRow());
+    }
+    
+    /**
+     * Same as <code>new Line(x1, y1, x2, y2).intersectsSquareAsPerForest(new Location(x, y))</code>,
+     * but does not need any objects. The points must be ordered as in a Line.
+     */
+    static boolean intersectsSquareAsPerForest(double x1, double y1, double x2, double y2, int x, int y) {
+	boolean hadIntersection = intersectsOrCoincides(x1, y1, x2, y2, x, y, x+1, y);
+	if (intersectsOrCoincides(x1, y1, x2, y2, x, y, x, y+1)) {
 	    if (hadIntersection) return true;
 	    hadIntersection = true;
 	}
-	if (intersectsOrCoincides(x+1, y, x+1, y+1)) {
+	if (intersectsOrCoincides(x1, y1, x2, y2, x+1, y, x+1, y+1)) {
 	    if (hadIntersection) return true;
 	    hadIntersection = true;
 	}
-	if (intersectsOrCoincides(x, y+1, x+1, y+1)) {
+	if (intersectsOrCoincides(x1, y1, x2, y2, x, y+1, x+1, y+1)) {
 	    if (hadIntersection) return true;
 	}
 	return false;
@@ -366,16 +528,22 @@ public class Line {
 	return IntersectionResult.coincident(loPt);
     }
 
-    private static boolean coincidentWithOverlap(double x1, double y1, double x2, double y2,
+    private static boolean coincidentWithOverlapExact(double x1, double y1, double x2, double y2,
 	    double x3, double y3, double x4, double y4)
     {
-	double d1 = x1*x1 + y1*y1;
-	double d2 = x2*x2 + y2*y2;
-	double d3 = x3*x3 + y3*y3;
-	double d4 = x4*x4 + y4*y4;
-	double lo = (d1 > d3) ? d1 : d3;
-	double hi = (d2 < d4) ? d2 : d4;
-	return lo <= hi;
+	BigDecimal d1 = squaredDistance(x1, y1);
+	BigDecimal d2 = squaredDistance(x2, y2);
+	BigDecimal d3 = squaredDistance(x3, y3);
+	BigDecimal d4 = squaredDistance(x4, y4);
+	BigDecimal lo = d1.max(d3);
+	BigDecimal hi = d2.min(d4);
+	return lo.compareTo(hi) <= 0;
+    }
+
+    private static BigDecimal squaredDistance(double x, double y) {
+	BigDecimal bx = new BigDecimal(x);
+	BigDecimal by = new BigDecimal(y);
+	return bx.multiply(bx).add(by.multiply(by));
     }
 
 }
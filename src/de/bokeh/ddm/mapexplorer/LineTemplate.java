@@ -0,0 +1,343 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The sample lines between two squares, relative to the source square.
+ * <p>
+ * The lines LosTester samples between two squares depend only on the
+ * position of the target relative to the source and on the slope of the
+ * diagonals, not on where the squares are on the map. For each unit edge
+ * of the grid that one of these lines touches, a LineTemplate stores the
+ * set of lines that touch it. If all walls between the two squares are
+ * made of unit edges, the lines blocked by walls are then found by
+ * combining the sets of the edges that are walls, without testing a line.
+ * <p>
+ * The lines are numbered <code>i * n + j</code>, with i and j the numbers of
+ * the offsets on the source and target diagonal, as in the loops of
+ * LosTester. The touched edges are computed exactly in fixed point, see
+ * SegmentKernel. A line touches an edge if it has a point in common with
+ * it, including the end points, as with <code>Line.intersectsOrCoincides</code>.
+ * <p>
+ * The lines for the displacement (-dx,-dy) are those for (dx,dy) with
+ * source and target swapped, so only one of the two templates is needed.
+ * <p>
+ * Templates are computed on first use and shared by all threads, until
+ * <code>clearCache</code> is called. Once the cached templates take up
+ * MAX_CACHE_SIZE bytes, no new ones are made, and <code>get</code>
+ * returns <code>null</code>. The limit is an eighth of the maximum heap
+ * size, but at most {@value #DEFAULT_MAX_CACHE_SIZE} bytes. It can be set
+ * in megabytes with the system property
+ * <code>mapexplorer.templatecache</code>; 0 disables the templates.
+ */
+final class LineTemplate {
+
+    /** Upper limit for the cached templates on a large heap, in bytes. */
+    static final long DEFAULT_MAX_CACHE_SIZE = 64L << 20;
+    /** Upper limit for the size of all cached templates, in bytes. */
+    static final long MAX_CACHE_SIZE = maxCacheSize();
+    
+    private static final ConcurrentHashMap<Long, LineTemplate> cache = new ConcurrentHashMap<Long, LineTemplate>();
+    private static final AtomicLong cacheSize = new AtomicLong();
+    private static final AtomicBoolean reportedFull = new AtomicBoolean();
+    
+    private final int numLines;
+    private final int words;
+    private final long[] masks;
+    // the touched edges in groups of up to 64 on one grid line
+    private final boolean[] groupVertical;
+    private final int[] groupX;
+    private final int[] groupY;
+    private final long[] groupEdges;
+    private final int[] groupStart;
+    
+    /**
+     * Get the template for a displacement.
+     * 
+     * @param dx target column minus source column
+     * @param dy target row minus source row
+     * @param descending <code>true</code> for the descending diagonals
+     * @return the template, or <code>null</code> if the cache is full.
+     */
+    static LineTemplate get(int dx, int dy, boolean descending) {
+	// dy and the diagonal take 33 bits, so every displacement has its own key
+	Long key = ((long) dx << 33) + ((long) dy << 1) + (descending ? 1 : 0);
+	LineTemplate t = cache.get(key);
+	if (t == null) {
+	    if (cacheSize.get() >= MAX_CACHE_SIZE) {
+		if (reportedFull.compareAndSet(false, true))
+		    Logger.getLogger(LineTemplate.class.getPackage().getName())
+			.warning("Line template cache full (" + (MAX_CACHE_SIZE >> 20)
+			      + " MB), further square pairs are tested without templates");
+		return null;
+	    }
+	    t = new LineTemplate(dx, dy, descending, LosTester.FIXED_TEST_OFFSETS_NORMAL);
+	    LineTemplate old = cache.putIfAbsent(key, t);
+	    if (old != null)
+		t = old;
+	    else
+		cacheSize.addAndGet(t.size());
+	}
+	return t;
+    }
+    
+    /**
+     * Remove all templates from the cache, to free their memory.
+     * <p>
+     * Templates in use by running LosTesters stay valid.
+     */
+    static void clearCache() {
+	cache.clear();
+	cacheSize.set(0);
+	reportedFull.set(false);
+    }
+
+    /**
+     * @return the number of bytes the cached templates take up.
+     */
+    static long getCacheSize() {
+	return cacheSize.get();
+    }
+
+    /**
+     * @return the limit for the cached templates, from the system property
+     *   or the maximum heap size.
+     */
+    private static long maxCacheSize() {
+	String p = System.getProperty("mapexplorer.templatecache");
+	if (p != null) {
+	    try {
+		return Long.parseLong(p.trim()) << 20;
+	    } catch (NumberFormatException ex) {
+		Logger.getLogger(LineTemplate.class.getPackage().getName())
+		    .warning("invalid mapexplorer.templatecache: " + p);
+	    }
+	}
+	return Math.min(DEFAULT_MAX_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 8);
+    }
+
+    /**
+     * Compute a template.
+     * 
+     * @param dx target column minus source column
+     * @param dy target row minus source row
+     * @param descending <code>true</code> for the descending diagonals
+     * @param offsets the offsets on the diagonals, in fixed point
+     */
+    LineTemplate(int dx, int dy, boolean descending, long[] offsets) {
+	final long one = SegmentKernel.FIXED_ONE;
+	final int n = offsets.length;
+	numLines = n * n;
+	words = (numLines + 63) >> 6;
+	// all touched edges are in the bounding box of the squares,
+	// or touch it with an end point
+	int x0 = Math.min(0, dx) - 1;
+	int y0 = Math.min(0, dy) - 1;
+	int w = Math.abs(dx) + 3;
+	int h = Math.abs(dy) + 3;
+	long[][] found = new long[2 * w * h][];
+	for (int i = 0; i < n; i++) {
+	    long px = offsets[i];
+	    long py = descending ? one - offsets[i] : offsets[i];
+	    for (int j = 0; j < n; j++) {
+		long qx = dx * one + offsets[j];
+		long qy = dy * one + (descending ? one - offsets[j] : offsets[j]);
+		int line = i * n + j;
+		// vertical edges, at the crossings with x = k
+		for (long k = ceilDiv(Math.min(px, qx), one); k * one <= Math.max(px, qx); k++) {
+		    if (px == qx) {
+			// along the grid line
+			for (long r = ceilDiv(Math.min(py, qy), one) - 1; r * one <= Math.max(py, qy); r++)
+			    mark(found, w, h, true, (int) k - x0, (int) r - y0, line);
+		    } else {
+			markCrossing(found, w, h, true, k, px, py, qx, qy, x0, y0, line);
+		    }
+		}
+		// horizontal edges, at the crossings with y = k
+		for (long k = ceilDiv(Math.min(py, qy), one); k * one <= Math.max(py, qy); k++) {
+		    if (py == qy) {
+			for (long r = ceilDiv(Math.min(px, qx), one) - 1; r * one <= Math.max(px, qx); r++)
+			    mark(found, w, h, false, (int) r - x0, (int) k - y0, line);
+		    } else {
+			markCrossing(found, w, h, false, k, py, px, qy, qx, y0, x0, line);
+		    }
+		}
+	    }
+	}
+	int count = 0;
+	int groups = 0;
+	int lastGroup = -1;
+	for (int i = 0; i < found.length; i++) {
+	    if (found[i] != null) {
+		count++;
+		int g = groupOf(i, w);
+		if (g != lastGroup) {
+		    groups++;
+		    lastGroup = g;
+		}
+	    }
+	}
+	masks = new long[count * words];
+	groupVertical = new boolean[groups];
+	groupX = new int[groups];
+	groupY = new int[groups];
+	groupEdges = new long[groups];
+	groupStart = new int[groups];
+	int e = 0;
+	int g = -1;
+	lastGroup = -1;
+	for (int i = 0; i < found.length; i++) {
+	    if (found[i] == null)
+		continue;
+	    int k = i % (w * h);
+	    int x = k % w;
+	    if (groupOf(i, w) != lastGroup) {
+		lastGroup = groupOf(i, w);
+		g++;
+		groupVertical[g] = i < w * h;
+		groupX[g] = (x & ~63) + x0;
+		groupY[g] = k / w + y0;
+		groupStart[g] = e;
+	    }
+	    groupEdges[g] |= 1L << x;
+	    System.arraycopy(found[i], 0, masks, e * words, words);
+	    e++;
+	}
+    }
+    
+    /**
+     * The group of an edge: the edges on one grid line, 64 at a time.
+     */
+    private static int groupOf(int i, int w) {
+	return (i / w) * ((w + 63) >> 6) + (i % w >> 6);
+    }
+    
+    /**
+     * Mark the edges on the grid line <code>u = k</code> touched by the
+     * line from (pu,pv) to (qu,qv), with pu != qu.
+     * <p>
+     * The coordinates are swapped for horizontal edges: u is y and v is x.
+     */
+    private void markCrossing(long[][] found, int w, int h, boolean vertical, long k,
+                              long pu, long pv, long qu, long qv, int u0, int v0, int line) {
+	final long one = SegmentKernel.FIXED_ONE;
+	long den = qu - pu;
+	long num = pv * den + (k * one - pu) * (qv - pv);
+	if (den < 0) {
+	    den = -den;
+	    num = -num;
+	}
+	// the crossing is at v = num / den
+	long unit = den * one;
+	long r = floorDiv(num, unit);
+	int u = (int) k - u0;
+	if (vertical) {
+	    mark(found, w, h, true, u, (int) r - v0, line);
+	    if (r * unit == num)
+		mark(found, w, h, true, u, (int) r - 1 - v0, line);
+	} else {
+	    mark(found, w, h, false, (int) r - v0, u, line);
+	    if (r * unit == num)
+		mark(found, w, h, false, (int) r - 1 - v0, u, line);
+	}
+    }
+    
+    private void mark(long[][] found, int w, int h, boolean vertical, int x, int y, int line) {
+	int i = (vertical ? 0 : w * h) + y * w + x;
+	if (found[i] == null)
+	    found[i] = new long[words];
+	found[i][line >> 6] |= 1L << line;
+    }
+    
+    private static long floorDiv(long a, long b) {
+	long q = a / b;
+	if ((a % b != 0) && ((a < 0) != (b < 0)))
+	    q--;
+	return q;
+    }
+    
+    private static long ceilDiv(long a, long b) {
+	return -floorDiv(-a, b);
+    }
+    
+    /**
+     * @return the number of lines, <code>n * n</code> for n offsets.
+     */
+    int getNumLines() {
+	return numLines;
+    }
+    
+    /**
+     * @return the approximate size of this template in bytes.
+     */
+    long size() {
+	return 8L * masks.length + 29L * groupStart.length + 64;
+    }
+    
+    /**
+     * Find the lines that touch no wall.
+     * <p>
+     * For each group of edges, the walls among them are found with one
+     * bitboard lookup, and the lines touching them are combined.
+     * 
+     * @param index the walls
+     * @param col the column of the source square
+     * @param row the row of the source square
+     * @param clear receives the clear lines, one bit per line. Must have room
+     *   for <code>getNumLines()</code> bits.
+     * @return <code>true</code> if there is a clear line.
+     */
+    boolean findClearLines(WallIndex index, int col, int row, long[] clear) {
+	Arrays.fill(clear, 0, words, 0L);
+	for (int g = 0; g < groupStart.length; g++) {
+	    long edges = groupEdges[g];
+	    long hit = index.getWallEdges(groupVertical[g], col + groupX[g], row + groupY[g]) & edges;
+	    if (hit == 0)
+		continue;
+	    do {
+		long bit = hit & -hit;
+		int base = (groupStart[g] + Long.bitCount(edges & (bit - 1))) * words;
+		for (int i = 0; i < words; i++)
+		    clear[i] |= masks[base + i];
+		hit ^= bit;
+	    } while (hit != 0);
+	}
+	boolean any = false;
+	for (int i = 0; i < words; i++) {
+	    clear[i] = ~clear[i];
+	    if (i == words - 1 && (numLines & 63) != 0)
+		clear[i] &= (1L << numLines) - 1;
+	    if (clear[i] != 0)
+		any = true;
+	}
+	return any;
+    }
+}
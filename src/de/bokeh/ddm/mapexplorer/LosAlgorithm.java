@@ -0,0 +1,87 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The algorithms available for testing LOS between two squares.
+ */
+public enum LosAlgorithm {
+
+    /** Systematic and random sampling of lines, see LosTester. */
+    SAMPLING,
+
+    /** Exact test using critical lines, see ExactLosTester. */
+    EXACT,
+
+    /** Exact test by covering the parameter square with blocked regions, see CoverageLosTester. */
+    COVERAGE;
+
+    /**
+     * Create a LosTester using this algorithm.
+     *
+     * @param loc the Location to test LOS from
+     * @param size the size of the map
+     * @param walls the walls
+     * @param forestSquares the forest squares
+     * @param rndTests the number of random tests to perform, if the algorithm uses them
+     * @param logger a Logger
+     * @return a new LosTester
+     */
+    public LosTester newTester(Location loc, Dimension size, Set<Line> walls, Set<Location> forestSquares,
+                               int rndTests, Logger logger) {
+	return newTester(loc, new WallIndex(size, walls, forestSquares), rndTests, logger);
+    }
+
+    /**
+     * Create a LosTester using this algorithm.
+     *
+     * @param loc the Location to test LOS from
+     * @param wallIndex the walls and forest squares of the map
+     * @param rndTests the number of random tests to perform, if the algorithm uses them
+     * @param logger a Logger
+     * @return a new LosTester
+     */
+    public LosTester newTester(Location loc, WallIndex wallIndex, int rndTests, Logger logger) {
+	switch (this) {
+	case EXACT: return new ExactLosTester(loc, wallIndex, logger);
+	case COVERAGE: return new CoverageLosTester(loc, wallIndex, logger);
+	default: return new LosTester(loc, wallIndex, rndTests, logger);
+	}
+    }
+
+    /**
+     * Get the algorithm with the given name.
+     * @param name the name, case is ignored
+     * @return the LosAlgorithm
+     * @throws IllegalArgumentException if there is no algorithm with that name
+     */
+    public static LosAlgorithm valueOfName(String name) {
+	return valueOf(name.trim().toUpperCase(java.util.Locale.ENGLISH));
+    }
+
+}
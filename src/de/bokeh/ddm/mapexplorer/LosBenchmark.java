@@ -46,9 +46,17 @@ public class LosBenchmark {
     private final Logger logger;
     private int numThreads;
     private final int randomTestsPerSquare;
+    private LosAlgorithm algorithm = LosAlgorithm.SAMPLING;
+    private boolean useLosTable = false;
+    private boolean symmetric = false;
+    private LosTableCache losTableCache = null;
     private boolean writeLosFile = false;
     private int repetitions = 5;
     
+    /** The number of source and target pairs used by kernelBenchmark. */
+    private static final int KERNEL_PAIRS = 2000;
+    private static final int KERNEL_WARMUP = 3;
+    
     /**
      * Create new LosBenchmark.
      * 
@@ -75,6 +83,11 @@ public class LosBenchmark {
     public void fullBenchmark() {
         setLogLevel(Level.WARNING);
         System.out.println("MapExplorer Benchmark - version " + MapExplorer.VERSION);
+        System.out.println("LOS algorithm: " + algorithm.toString().toLowerCase());
+        if (useLosTable)
+            System.out.println("Using LOS table" + (symmetric ? " (symmetric)" : ""));
+        if (losTableCache != null)
+            System.out.println("LOS table cache: " + losTableCache.getDir());
 	int nCpus = Runtime.getRuntime().availableProcessors();
 	logger.info("Starting full benchmark.");
 	logger.info("Number of processors: " + nCpus);
@@ -93,6 +106,8 @@ public class LosBenchmark {
 	}
 
 	losCalculator.shutdown();
+	LosStatistics.reset();
+	LosStatistics.setEnabled(true);
 
 	long[][] times = new long[nCpus + 1][];
 	
@@ -106,6 +121,10 @@ public class LosBenchmark {
             System.out.flush();
 	    losCalculator = new LosCalculator(numThreads);
 	    losCalculator.setRandomTestsPerSquare(randomTestsPerSquare);
+	    losCalculator.setAlgorithm(algorithm);
+	    losCalculator.setUseLosTable(useLosTable);
+	    losCalculator.setSymmetric(symmetric);
+	    losCalculator.setLosTableCache(losTableCache);
 	    losCalculator.setSmokeBlocksLos(false);
 	    losCalculator.setMap(map, losMap);
 	    times[numThreads] = new long[repetitions];
@@ -148,8 +167,222 @@ public class LosBenchmark {
 	        System.out.println(msg);
 	    }
 	}
+	LosStatistics.setEnabled(false);
+	String stats = LosStatistics.report();
+	if (stats != null) {
+	    logger.info(stats);
+	    System.out.println(stats);
+	}
     }
     
+    /** The variants compared by kernelBenchmark. */
+    private static final String[] KERNEL_VARIANTS = { "Line objects", "Scalar kernel", "Fixed point" };
+
+    /**
+     * Compare the speed of the test of a single sample line using Line
+     * objects, as LosTester did before, with the SegmentKernel in double
+     * and in fixed point.
+     * <p>
+     * The walls and forest squares between random pairs of squares are
+     * collected first. Then all sample lines LosTester uses for a pair are
+     * tested with each variant, without stopping at the first unblocked
+     * line. Each variant is run a few times untimed so that it gets
+     * compiled, then <code>repetitions</code> times timed. All must find
+     * the same number of unblocked lines.
+     */
+    public void kernelBenchmark() {
+        setLogLevel(Level.WARNING);
+        System.out.println("MapExplorer Kernel Benchmark - version " + MapExplorer.VERSION);
+        logConfig();
+        System.out.println("Kernel used for LOS: " + SegmentKernel.DESCRIPTION);
+        WallIndex wallIndex = new MapGeometry(map).getWallIndex(isSmokeBlocksLos());
+        WallIndex.Search search = wallIndex.newSearch();
+        List<Location> squares = new ArrayList<Location>();
+        for (int row = 0; row < map.getHeight(); row++) {
+            for (int col = 0; col < map.getWidth(); col++) {
+                if (!map.get(col, row).isSolid())
+                    squares.add(new Location(col, row));
+            }
+        }
+        Random rnd = new Random(1);
+        SamplePair[] pairs = new SamplePair[KERNEL_PAIRS];
+        for (int i = 0; i < pairs.length; i++) {
+            Location source = squares.get(rnd.nextInt(squares.size()));
+            Location target;
+            do {
+                target = squares.get(rnd.nextInt(squares.size()));
+            } while (target.equals(source));
+            pairs[i] = new SamplePair(source, target, search);
+        }
+        System.out.println(pairs.length + " pairs of squares");
+
+        final int n = KERNEL_VARIANTS.length;
+        long[][] times = new long[n][repetitions];
+        long[] visible = new long[n];
+        for (int i = -KERNEL_WARMUP; i < repetitions; i++) {
+            for (int v = 0; v < n; v++) {
+                long start = System.nanoTime();
+                visible[v] = 0;
+                for (SamplePair p : pairs)
+                    visible[v] += p.countVisible(v);
+                if (i >= 0)
+                    times[v][i] = System.nanoTime() - start;
+            }
+        }
+        for (int v = 1; v < n; v++) {
+            if (visible[v] != visible[0]) {
+                logger.severe("Kernel mismatch: " + KERNEL_VARIANTS[v] + " found " + visible[v]
+                              + " unblocked lines, expected " + visible[0]);
+                System.out.println("FAILED: " + KERNEL_VARIANTS[v] + " found " + visible[v]
+                                   + " unblocked lines, Line objects found " + visible[0]);
+                return;
+            }
+        }
+        for (int v = 0; v < n; v++) {
+            Arrays.sort(times[v]);
+            System.out.println(String.format("%-14s %.3f seconds (median %.3f seconds), speedup: %.2fx",
+                                             KERNEL_VARIANTS[v] + ":", times[v][0] / 1e9,
+                                             times[v][repetitions / 2] / 1e9,
+                                             (double) times[0][0] / times[v][0]));
+        }
+    }
+
+    /**
+     * The walls and forest squares between two squares, for kernelBenchmark.
+     */
+    private static class SamplePair {
+
+        private final int x1;
+        private final int y1;
+        private final int x2;
+        private final int y2;
+        private final boolean descending;
+        private final double[] testOffsets;
+        private final long[] fixedOffsets;
+        private final Line[] walls;
+        private final Location[] forestSquares;
+        private final boolean haveDiagonalWalls;
+        private final SegmentKernel kernel;
+
+        SamplePair(Location source, Location target, WallIndex.Search search) {
+            x1 = source.getColumn();
+            y1 = source.getRow();
+            x2 = target.getColumn();
+            y2 = target.getRow();
+            // as in LosTester.testLocation
+            descending = (source.x() < target.x()) == (source.y() < target.y());
+            Rectangle bounds = new Rectangle(source, target);
+            walls = search.findWalls(bounds);
+            haveDiagonalWalls = search.isFoundDiagonal();
+            forestSquares = target.isNeighborOf(source) ? null : search.findForestSquares(bounds, source, target);
+            kernel = new SegmentKernel(walls.length, forestSquares == null ? 0 : forestSquares.length);
+            kernel.setWalls(walls);
+            kernel.setForestSquares(forestSquares);
+            testOffsets = LosTester.makeTestOffsets(haveDiagonalWalls ? 64 : 32);
+            fixedOffsets = new long[testOffsets.length];
+            for (int i = 0; i < testOffsets.length; i++)
+                fixedOffsets[i] = (long) (testOffsets[i] * SegmentKernel.FIXED_ONE);
+        }
+
+        /**
+         * @param variant index into KERNEL_VARIANTS
+         */
+        int countVisible(int variant) {
+            if (variant == 0)
+                return countVisibleWithLines();
+            if (variant == 2)
+                return countVisibleFixed();
+            return countVisibleWithKernel();
+        }
+
+        int countVisibleFixed() {
+            final int shift = SegmentKernel.FIXED_SHIFT;
+            final long one = SegmentKernel.FIXED_ONE;
+            int n = 0;
+            for (long e1off : fixedOffsets) {
+                for (long e2off : fixedOffsets) {
+                    long o1y = descending ? one - e1off : e1off;
+                    long o2y = descending ? one - e2off : e2off;
+                    long ax = ((long) x1 << shift) + e1off;
+                    long ay = ((long) y1 << shift) + o1y;
+                    long bx = ((long) x2 << shift) + e2off;
+                    long by = ((long) y2 << shift) + o2y;
+                    if (kernel.isBlockedByWall(ax, ay, bx, by) || kernel.isBlockedByForest(ax, ay, bx, by))
+                        continue;
+                    if (haveDiagonalWalls) {
+                        long half = one / 2;
+                        if (kernel.isBlockedByWall(ax, ay, ((long) x1 << shift) + half, ((long) y1 << shift) + half)
+                            || kernel.isBlockedByWall(bx, by, ((long) x2 << shift) + half, ((long) y2 << shift) + half))
+                            continue;
+                    }
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        int countVisibleWithLines() {
+            int n = 0;
+            for (double e1off : testOffsets) {
+                for (double e2off : testOffsets) {
+                    double o1y = descending ? 1 - e1off : e1off;
+                    double o2y = descending ? 1 - e2off : e2off;
+                    if (losWithLines(x1 + e1off, y1 + o1y, x2 + e2off, y2 + o2y))
+                        n++;
+                }
+            }
+            return n;
+        }
+
+        int countVisibleWithKernel() {
+            int n = 0;
+            for (double e1off : testOffsets) {
+                for (double e2off : testOffsets) {
+                    double o1y = descending ? 1 - e1off : e1off;
+                    double o2y = descending ? 1 - e2off : e2off;
+                    if (losWithKernel(x1 + e1off, y1 + o1y, x2 + e2off, y2 + o2y))
+                        n++;
+                }
+            }
+            return n;
+        }
+
+        private boolean losWithLines(double ax, double ay, double bx, double by) {
+            for (Line wall : walls) {
+                if (wall.intersectsOrCoincides(ax, ay, bx, by))
+                    return false;
+            }
+            if (forestSquares != null) {
+                Line line = new Line(ax, ay, bx, by);
+                for (Location sq : forestSquares) {
+                    if (line.intersectsSquareAsPerForest(sq))
+                        return false;
+                }
+            }
+            if (haveDiagonalWalls) {
+                for (Line wall : walls) {
+                    if (wall.intersectsOrCoincides(ax, ay, x1 + 0.5, y1 + 0.5)
+                        || wall.intersectsOrCoincides(bx, by, x2 + 0.5, y2 + 0.5))
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean losWithKernel(double ax, double ay, double bx, double by) {
+            if (kernel.isBlockedByWall(ax, ay, bx, by))
+                return false;
+            if (kernel.isBlockedByForest(ax, ay, bx, by))
+                return false;
+            if (haveDiagonalWalls) {
+                if (kernel.isBlockedByWall(ax, ay, x1 + 0.5, y1 + 0.5)
+                    || kernel.isBlockedByWall(bx, by, x2 + 0.5, y2 + 0.5))
+                    return false;
+            }
+            return true;
+        }
+    }
+
     private void logConfig() {
         RuntimeMXBean b = ManagementFactory.getRuntimeMXBean();
         System.out.println("  \"java.vm.name\" : \"" + b.getVmName() + "\",");
@@ -177,89 +410,113 @@ public class LosBenchmark {
      * Index 3 contains the elapsed time in milliseconds.
      */
     public long[] run() {
+	return run(false)[0];
+    }
+
+    /**
+     * Run benchmark without and with smoke in one pass.
+     * <p>
+     * The LOS with smoke is derived from the LOS without smoke, see
+     * <code>LosCalculator.computeLos(LosMap)</code>. The smoke setting
+     * is not used.
+     *
+     * @return Two arrays as returned by <code>run</code>, the first one
+     * for LOS without smoke, the second one with smoke. The elapsed time
+     * is the time for both.
+     */
+    public long[][] runWithAndWithoutSmoke() {
+	return run(true);
+    }
+
+    private long[][] run(boolean both) {
 	logger.info("Starting LOS benchmark for map " + map.getName());
 	logger.info("Number of threads: " + numThreads);
 	
-	PrintWriter losFile = null;
+	final int n = both ? 2 : 1;
+	PrintWriter[] losFiles = new PrintWriter[n];
 	if (writeLosFile) {
-	    String name = map.getName();
-	    if (losCalculator.isSmokeBlocksLos())
-	        name += ".smoke";
-	    name += ".los";
-	    try {
-	        losFile = new PrintWriter(name);
-	    } catch (FileNotFoundException ex) {
-	        logger.warning("can't write los file " + name);
+	    for (int k = 0; k < n; k++) {
+		String name = map.getName();
+		if (both ? k == 1 : losCalculator.isSmokeBlocksLos())
+		    name += ".smoke";
+		name += ".los";
+		try {
+		    losFiles[k] = new PrintWriter(name);
+		} catch (FileNotFoundException ex) {
+		    logger.warning("can't write los file " + name);
+		}
 	    }
 	}
 	
 	long startTime = System.nanoTime();
+	losCalculator.clearLosTables();
 
 	Creature creature = new Creature(CreatureSize.MEDIUM);
 	Set<Creature> creatures = new HashSet<Creature>();
 	creatures.add(creature);
 	losCalculator.setCreatures(creatures);
+	LosMap smokeLosMap = both ? new LosMap(map.getDimension()) : null;
 	
 	final int height = map.getHeight();
 	final int width = map.getWidth();
 	int numSquaresTested = 0;
-	int numRnd = 0;
-	int totalLos = 0;
+	int[] numRnd = new int[n];
+	int[] totalLos = new int[n];
 	for (int row = 0; row < height; row++) {
 	    for (int col = 0; col < width; col++) {
 		Location loc = new Location(col, row);
 		MapSquare s = map.get(loc);
 		if (s.isSolid()) {
 		    // logger.info(loc + ": solid rock");
-		    if (losFile != null)
-		        losFile.println(loc + " rock");
+		    for (PrintWriter losFile : losFiles) {
+			if (losFile != null)
+			    losFile.println(loc + " rock");
+		    }
 		} else {
-		    if (losFile != null)
-		        losFile.print(loc);
 		    creature.setLocation(loc);
-		    long start = System.nanoTime();
-		    losCalculator.computeLos();
-		    long elapsed = (System.nanoTime() - start) / 1000000;
-		    if (losFile != null) {
-		        LosMap los = losCalculator.getLos();
-		        for (int y = 0; y < height; y++) {
-		            for (int x = 0; x < width; x++) {
-		                if (los.get(x, y)) {
-		                    losFile.print(' ');
-		                    losFile.print(new Location(x, y));
-		                }
-		            }
-		        }
-			losFile.println();
+		    if (both)
+			losCalculator.computeLos(smokeLosMap);
+		    else
+			losCalculator.computeLos();
+		    for (int k = 0; k < n; k++) {
+			LosMap los = (k == 0) ? losCalculator.getLos() : smokeLosMap;
+			if (losFiles[k] != null) {
+			    losFiles[k].print(loc);
+			    for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+				    if (los.get(x, y)) {
+					losFiles[k].print(' ');
+					losFiles[k].print(new Location(x, y));
+				    }
+				}
+			    }
+			    losFiles[k].println();
+			}
+			totalLos[k] += los.getLosCount();
+			numRnd[k] += (k == 0) ? losCalculator.getNumRndLos() : losCalculator.getNumRndSmokeLos();
 		    }
-		    
-		    int numLos = losCalculator.getNumLos();
-		    int numRndLos = losCalculator.getNumRndLos();
-		    String msg = loc + ": " + numLos + " LOS squares, " + elapsed + " ms.";
-		    if (numRndLos > 0)
-			msg += " [" + numRndLos + " rnd]";
-		    // logger.info(msg);
-		    // LosTester lt = new LosTester(loc, map.getDimension(), map.getWalls(smokeBlocksLos), randomTestsPerSquare, logger);
-		    // numRnd += testLos(loc, lt);
 		    numSquaresTested++;
-		    totalLos += numLos;
-		    numRnd += numRndLos;
 		}
 	    }
 	}
 	
 	long elapsedTime = (System.nanoTime() - startTime) / 1000000;
-	if (losFile != null)
-	    losFile.close();
+	for (PrintWriter losFile : losFiles) {
+	    if (losFile != null)
+		losFile.close();
+	}
 	logger.info("Total time: " + elapsedTime + " ms.");
 	logger.info("Squares tested: " + numSquaresTested);
-	logger.info("LOS squares total: " + totalLos);
 	if (numSquaresTested > 0) {
 	    logger.info("Avg. " + (elapsedTime / numSquaresTested) + " ms. per tested square.");
 	}
-	logger.info(numRnd + " found by random testing.");
-	// losCalculator.shutdown();
-        return new long[]{numSquaresTested, totalLos, numRnd, elapsedTime};
+	long[][] r = new long[n][];
+	for (int k = 0; k < n; k++) {
+	    logger.info("LOS squares total: " + totalLos[k]);
+	    logger.info(numRnd[k] + " found by random testing.");
+	    r[k] = new long[]{numSquaresTested, totalLos[k], numRnd[k], elapsedTime};
+	}
+        return r;
     }
     
     /**
@@ -276,6 +533,77 @@ public class LosBenchmark {
         return losCalculator.isSmokeBlocksLos();
     }
 
+    /**
+     * @return Returns the algorithm.
+     */
+    public LosAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param algorithm The algorithm to set.
+     */
+    public void setAlgorithm(LosAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        losCalculator.setAlgorithm(algorithm);
+    }
+
+    /**
+     * @return Returns the useLosTable.
+     */
+    public boolean isUseLosTable() {
+        return useLosTable;
+    }
+
+    /**
+     * Use a LOS table computed once per run, see LosCalculator.
+     * <p>
+     * The elapsed time of a run includes computing the table.
+     *
+     * @param useLosTable The useLosTable to set.
+     */
+    public void setUseLosTable(boolean useLosTable) {
+        this.useLosTable = useLosTable;
+        losCalculator.setUseLosTable(useLosTable);
+    }
+
+    /**
+     * @return Returns the symmetric.
+     */
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    /**
+     * Test each pair of squares only once, and use the result for
+     * both directions.
+     * <p>
+     * This implies using the LOS table.
+     *
+     * @param symmetric The symmetric to set.
+     */
+    public void setSymmetric(boolean symmetric) {
+        this.symmetric = symmetric;
+        losCalculator.setSymmetric(symmetric);
+        if (symmetric)
+            setUseLosTable(true);
+    }
+
+    /**
+     * @return Returns the losTableCache.
+     */
+    public LosTableCache getLosTableCache() {
+        return losTableCache;
+    }
+
+    /**
+     * @param losTableCache The losTableCache to set, or <code>null</code> for no cache.
+     */
+    public void setLosTableCache(LosTableCache losTableCache) {
+        this.losTableCache = losTableCache;
+        losCalculator.setLosTableCache(losTableCache);
+    }
+
     public boolean isWriteLosFile() {
         return writeLosFile;
     }
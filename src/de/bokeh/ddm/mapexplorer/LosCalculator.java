@@ -37,20 +37,46 @@ import java.util.concurrent.*;
  */
 public class LosCalculator {
     
-    private final ExecutorService tpe;
+    /** The number of creature results kept by the creature LOS cache. */
+    private static final int CREATURE_LOS_CACHE_SIZE = 64;
+
+    /**
+     * The number of LosTesters kept by each worker thread: enough for
+     * all squares of the largest creature, with and without smoke.
+     */
+    private static final int WORKER_TESTERS = 2 * CreatureSize.COLOSSAL.sizeSquares() * CreatureSize.COLOSSAL.sizeSquares();
+
+    private final ForkJoinPool tpe;
 
     private Map map;
     private LosMap los;
     private int numRndLos;
+    private int numRndSmokeLos;
     
     private Set<Creature> creatures;
     private boolean smokeBlocksLos;
     private int totalTasks;
     private int tasksDone;
     private int randomTestsPerSquare;
+    private LosAlgorithm algorithm;
     private final Logger logger;
     private Set<Line> walls;
-    private Set<Location> forestSquares;
+    private MapGeometry geometry;
+    private WallIndex wallIndex;
+    private boolean useLosTable;
+    private boolean symmetric;
+    private final LosTable[] losTables = new LosTable[2]; // indexed by smoke setting
+    private final java.util.Map<CreatureLosKey,CreatureLos> creatureLosCache = new LinkedHashMap<CreatureLosKey,CreatureLos>(16, 0.75f, true) {
+	private static final long serialVersionUID = 1L;
+	@Override
+	protected boolean removeEldestEntry(java.util.Map.Entry<CreatureLosKey,CreatureLos> eldest) {
+	    return size() > CREATURE_LOS_CACHE_SIZE;
+	}
+    };
+    private MapGeometry creatureLosCacheGeometry; // the geometry the cached results are for
+    private LosTableCache losTableCache;
+    private final ThreadLocal<WorkerTesters> workerTesters = new ThreadLocal<WorkerTesters>();
+    private volatile boolean cancelled;
 
     
     /**
@@ -59,8 +85,9 @@ public class LosCalculator {
      * @param numThreads number of threads to use for LOS calculation
      */
     public LosCalculator(int numThreads) {
-	tpe = Executors.newFixedThreadPool(numThreads);
+	tpe = new ForkJoinPool(numThreads);
 	randomTestsPerSquare = 100;
+	algorithm = LosAlgorithm.SAMPLING;
 	logger = Logger.getLogger(this.getClass().getPackage().getName());
     }
     
@@ -73,20 +100,411 @@ public class LosCalculator {
     
     /**
      * Compute line-of-sight for the complete map.
+     * <p>
+     * If the LOS table is enabled, it is computed first if needed, and
+     * the result is then taken from the table.
+     * <p>
+     * The computation stops early if <code>cancel</code> is called. The
+     * LOS information is then incomplete.
+     *
+     * @return <code>true</code> if the computation was completed,
+     *   <code>false</code> if it was cancelled.
      */
-    public void computeLos() {
-	walls = map.getWalls(smokeBlocksLos);
-	forestSquares = getForestSquares(map);
-	List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+    public boolean computeLos() {
+	if (cancelled)
+	    return false;
+	updateGeometry();
+	if (useLosTable)
+	    return computeLosFromTable(smokeBlocksLos, los);
+	return computeLosDirect(smokeBlocksLos);
+    }
+
+    /**
+     * Compute line-of-sight for the complete map, both without and with smoke.
+     * <p>
+     * The LOS without smoke is stored in the LosMap given to <code>setMap</code>,
+     * the LOS with smoke in smokeLos; the smoke setting is not used. Smoke only
+     * adds walls, so a target that is blocked without smoke is also blocked
+     * with smoke. Only the targets visible without smoke are therefore tested
+     * again with smoke. The squares adjacent to a creature are tested without
+     * smoke as in <code>computeLos</code>.
+     * <p>
+     * With the LOS table, the table for smoke is computed from the table
+     * without smoke in the same way.
+     *
+     * @param smokeLos the LosMap for the LOS with smoke
+     * @return <code>true</code> if the computation was completed,
+     *   <code>false</code> if it was cancelled.
+     */
+    public boolean computeLos(LosMap smokeLos) {
+	if (cancelled)
+	    return false;
+	updateGeometry();
+	boolean done;
+	if (useLosTable)
+	    done = computeLosFromTable(false, los);
+	else
+	    done = computeLosDirect(false);
+	if (!done)
+	    return false;
+	int rnd = getNumRndLos();
+	if (useLosTable)
+	    done = computeLosFromTable(true, smokeLos);
+	else
+	    done = computeSmokeLos(smokeLos);
+	synchronized (this) {
+	    numRndSmokeLos = numRndLos;
+	    numRndLos = rnd;
+	}
+	return done;
+    }
+
+    /**
+     * Compute line-of-sight for the complete map by testing all targets.
+     * <p>
+     * The LOS of each creature is computed separately and kept in a cache,
+     * so that only creatures that were added or moved since the last
+     * computation need to be tested again.
+     */
+    private boolean computeLosDirect(boolean smoke) {
+	walls = geometry.getWalls(smoke);
+	wallIndex = geometry.getWallIndex(smoke);
 	
 	los.clear();
+	if (creatureLosCacheGeometry != geometry) {
+	    creatureLosCache.clear();
+	    creatureLosCacheGeometry = geometry;
+	}
+	WallIndex noSmokeWalls = smoke ? geometry.getWallIndex(false) : null;
+	int rnd = 0;
+	for (Creature c : creatures) {
+	    CreatureLosKey key = new CreatureLosKey(c, smoke);
+	    CreatureLos r = creatureLosCache.get(key);
+	    if (r == null) {
+		LosMap result = (creatures.size() == 1) ? los : new LosMap(map.getDimension());
+		synchronized (this) {
+		    numRndLos = 0;
+		}
+		List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+		addTasksFor(c, ts, noSmokeWalls, result);
+		if (!runTasks(ts))
+		    return false;
+		r = new CreatureLos(result.getAll(), getNumRndLos());
+		creatureLosCache.put(key, r);
+	    }
+	    los.setAll(r.squares);
+	    rnd += r.numRndLos;
+	}
+	synchronized (this) {
+	    numRndLos = rnd;
+	}
+	return true;
+    }
+
+    /**
+     * Compute line-of-sight with smoke after <code>computeLosDirect(false)</code>,
+     * testing only the targets visible without smoke.
+     */
+    private boolean computeSmokeLos(LosMap smokeLos) {
+	WallIndex noSmokeWalls = wallIndex;
+	walls = geometry.getWalls(true);
+	wallIndex = geometry.getWallIndex(true);
+	smokeLos.clear();
 	synchronized (this) {
 	    numRndLos = 0;
 	}
-	Set<Line> noSmokeWalls = smokeBlocksLos ? map.getWalls(false) : null;
+	List<Location> targets = new ArrayList<Location>();
+	for (int row = 0; row < map.getHeight(); row++) {
+	    for (int col = 0; col < map.getWidth(); col++) {
+		if (los.get(col, row))
+		    targets.add(new Location(col, row));
+	    }
+	}
+	List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+	for (Creature c : creatures)
+	    addPartialTasksFor(c, targets, ts, noSmokeWalls, smokeLos);
+	return runTasks(ts);
+    }
+
+    /**
+     * Update line-of-sight after elemental walls were added or removed.
+     * <p>
+     * The LosMap must hold the complete LOS for the current creatures and
+     * smoke setting as it was before the change. Only the targets whose LOS
+     * can change are tested again: walls can only block LOS to a target if
+     * they touch the rectangle between target and source, so after adding
+     * walls the visible targets near the changed squares are tested, and
+     * after removing walls the blocked ones. The result is the same as that
+     * of <code>computeLos</code>, except for the count of random LOS.
+     *
+     * @param changed the squares whose elemental walls were changed
+     * @param added <code>true</code> if the walls were added,
+     *   <code>false</code> if they were removed
+     * @return <code>true</code> if the computation was completed,
+     *   <code>false</code> if it was cancelled.
+     */
+    public boolean updateLos(Rectangle changed, boolean added) {
+	if (cancelled)
+	    return false;
+	updateGeometry();
+	walls = geometry.getWalls(smokeBlocksLos);
+	wallIndex = geometry.getWallIndex(smokeBlocksLos);
+	WallIndex noSmokeWalls = smokeBlocksLos ? geometry.getWallIndex(false) : null;
+	// the walls of a square touch the squares around it
+	Rectangle near = new Rectangle(new Location(Math.max(0, changed.getLeft() - 1),
+	                                            Math.max(0, changed.getBottom() - 1)),
+	                               new Location(Math.min(map.getWidth() - 1, changed.getRight() + 1),
+	                                            Math.min(map.getHeight() - 1, changed.getTop() + 1)));
+	List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+	if (added) {
+	    List<Location> sources = new ArrayList<Location>();
+	    for (Creature c : creatures) {
+		Location loc = c.getLocation();
+		int sz = c.getSize().sizeSquares();
+		for (int xoff = 0; xoff < sz; xoff++) {
+		    for (int yoff = 0; yoff < sz; yoff++)
+			sources.add(new Location(loc.getColumn() + xoff, loc.getRow() + yoff));
+		}
+	    }
+	    // A visible target may now be blocked from all sources. We don't
+	    // know which sources it was visible from, so test all of them.
+	    List<Location> targets = new ArrayList<Location>();
+	    for (int row = 0; row < map.getHeight(); row++) {
+		for (int col = 0; col < map.getWidth(); col++) {
+		    if (los.get(col, row)) {
+			Location target = new Location(col, row);
+			for (Location source : sources) {
+			    if (isNear(source, target, near)) {
+				targets.add(target);
+				break;
+			    }
+			}
+		    }
+		}
+	    }
+	    for (Location target : targets)
+		los.set(target.getColumn(), target.getRow(), false);
+	    for (Creature c : creatures)
+		addPartialTasksFor(c, targets, ts, noSmokeWalls, los);
+	} else {
+	    // A blocked target stays blocked from the sources it is not near.
+	    for (Creature c : creatures) {
+		Location loc = c.getLocation();
+		int sz = c.getSize().sizeSquares();
+		for (int xoff = 0; xoff < sz; xoff++) {
+		    for (int yoff = 0; yoff < sz; yoff++) {
+			Location source = new Location(loc.getColumn() + xoff, loc.getRow() + yoff);
+			List<Location> targets = new ArrayList<Location>();
+			for (int row = 0; row < map.getHeight(); row++) {
+			    for (int col = 0; col < map.getWidth(); col++) {
+				Location target = new Location(col, row);
+				if (!los.get(col, row) && isNear(source, target, near))
+				    targets.add(target);
+			    }
+			}
+			addPartialTasksFor(source, c, targets, ts, noSmokeWalls, los);
+		    }
+		}
+	    }
+	}
+	return runTasks(ts);
+    }
+
+    /**
+     * Check if the rectangle between source and target overlaps near.
+     */
+    private static boolean isNear(Location source, Location target, Rectangle near) {
+	return Math.min(source.getColumn(), target.getColumn()) <= near.getRight()
+	    && Math.max(source.getColumn(), target.getColumn()) >= near.getLeft()
+	    && Math.min(source.getRow(), target.getRow()) <= near.getTop()
+	    && Math.max(source.getRow(), target.getRow()) >= near.getBottom();
+    }
+
+    private void addPartialTasksFor(Creature c, List<Location> targets, List<Callable<Object>> ts,
+                                    WallIndex noSmokeWalls, LosMap result) {
+	Location loc = c.getLocation();
+	int sz = c.getSize().sizeSquares();
+	if (sz > 1) {
+	    // one task per map row, as in addTasksFor
+	    List<Location> rowTargets = new ArrayList<Location>();
+	    for (Location target : targets) {
+		if (!rowTargets.isEmpty() && rowTargets.get(0).getRow() != target.getRow()) {
+		    ts.add(new FootprintLosTask(c, rowTargets, this, wallIndex, noSmokeWalls, result));
+		    rowTargets = new ArrayList<Location>();
+		}
+		rowTargets.add(target);
+	    }
+	    if (!rowTargets.isEmpty())
+		ts.add(new FootprintLosTask(c, rowTargets, this, wallIndex, noSmokeWalls, result));
+	    return;
+	}
+	for (int xoff = 0; xoff < sz; xoff++) {
+	    for (int yoff = 0; yoff < sz; yoff++)
+		addPartialTasksFor(new Location(loc.getColumn() + xoff, loc.getRow() + yoff), c, targets, ts, noSmokeWalls, result);
+	}
+    }
+
+    /**
+     * Add tasks from source to some targets, testing the targets adjacent
+     * to the creature without smoke as in <code>computeLos</code>.
+     */
+    private void addPartialTasksFor(Location source, Creature c, List<Location> targets, List<Callable<Object>> ts,
+                                    WallIndex noSmokeWalls, LosMap result) {
+	List<Location> others = new ArrayList<Location>(targets.size());
+	for (Location target : targets) {
+	    if (!target.equals(source))
+		others.add(target);
+	}
+	if (others.isEmpty())
+	    return;
+	ts.add(new LosTask(source, others, this, wallIndex, result));
+	if (noSmokeWalls != null) {
+	    List<Location> adjacent = new ArrayList<Location>();
+	    for (Location target : others) {
+		if (isAdjacent(c, target))
+		    adjacent.add(target);
+	    }
+	    if (!adjacent.isEmpty())
+		ts.add(new LosTask(source, adjacent, this, noSmokeWalls, result));
+	}
+    }
+
+    /**
+     * Compute line-of-sight for the complete map by table lookup.
+     */
+    private boolean computeLosFromTable(boolean smoke, LosMap result) {
+	LosTable table = getLosTable(smoke);
+	if (table == null)
+	    return false;
+	result.clear();
+	int rnd = 0;
 	for (Creature c : creatures) {
-	    addTasksFor(c, ts, noSmokeWalls);
+	    Location loc = c.getLocation();
+	    int sz = c.getSize().sizeSquares();
+	    for (int xoff = 0; xoff < sz; xoff++) {
+		for (int yoff = 0; yoff < sz; yoff++) {
+		    Location source = new Location(loc.getColumn() + xoff, loc.getRow() + yoff);
+		    result.setAll(table.getRow(source));
+		    rnd += table.getNumRndLos(source);
+		}
+	    }
+	}
+	synchronized (this) {
+	    numRndLos = rnd;
+	}
+	if (smoke) {
+	    // The table only has LOS with smoke; test the adjacent squares
+	    // without smoke as usual.
+	    WallIndex noSmokeWalls = geometry.getWallIndex(false);
+	    List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+	    for (Creature c : creatures) {
+		addAdjacentTasksFor(c, ts, noSmokeWalls, result);
+	    }
+	    return runTasks(ts);
+	}
+	return true;
+    }
+
+    /**
+     * Get the LOS table for the current map and smoke setting.
+     * <p>
+     * If there is no valid table yet, it is loaded from the LosTableCache,
+     * if any. Otherwise it is computed and stored in the cache.
+     *
+     * @return the LosTable, or <code>null</code> if the computation
+     *   was cancelled.
+     */
+    public LosTable getLosTable() {
+	updateGeometry();
+	return getLosTable(smokeBlocksLos);
+    }
+
+    private LosTable getLosTable(boolean smoke) {
+	int i = smoke ? 1 : 0;
+	LosTable table = losTables[i];
+	if (table == null || !table.isFor(map, smoke)) {
+	    losTables[i] = null;
+	    table = null;
+	    if (losTableCache != null)
+		table = losTableCache.load(map, smoke, algorithm, randomTestsPerSquare);
+	    if (table == null) {
+		table = computeLosTable(smoke);
+		if (table == null)
+		    return null;
+		if (losTableCache != null)
+		    losTableCache.store(table, algorithm, randomTestsPerSquare);
+	    }
+	    losTables[i] = table;
+	}
+	return table;
+    }
+
+    /**
+     * Compute a new LOS table for the current map.
+     * <p>
+     * There is one task per source square. In symmetric mode, each task only
+     * tests the targets after its source, and the results are then copied to
+     * the targets' rows. Targets in the same row or column as the source
+     * are always tested from both sides, because the diagonals used by
+     * LosTester depend on the direction for them.
+     * <p>
+     * If the table with smoke is computed while the table without smoke
+     * is known, only the pairs visible without smoke are tested.
+     *
+     * @param smoke <code>true</code> for the table with smoke
+     * @return the new LosTable, or <code>null</code> if the computation
+     *   was cancelled.
+     */
+    private LosTable computeLosTable(boolean smoke) {
+	walls = geometry.getWalls(smoke);
+	wallIndex = geometry.getWallIndex(smoke);
+	LosTable table = new LosTable(map, smoke);
+	LosTable noSmokeTable = null;
+	if (smoke && losTables[0] != null && losTables[0].isFor(map, false))
+	    noSmokeTable = losTables[0];
+	List<Callable<Object>> ts = new ArrayList<Callable<Object>>();
+	for (int row = 0; row < map.getHeight(); row++) {
+	    for (int col = 0; col < map.getWidth(); col++) {
+		if (!geometry.isSolid(col, row))
+		    ts.add(new LosTableTask(new Location(col, row), table, noSmokeTable, this, wallIndex, symmetric));
+	    }
 	}
+	if (!runTasks(ts))
+	    return null;
+	if (symmetric) {
+	    for (Callable<Object> t : ts)
+		((LosTableTask) t).mirror();
+	}
+	return table;
+    }
+
+    /**
+     * Forget all LOS tables, cached creature results and the map geometry.
+     * <p>
+     * The cached information is dropped automatically when the version
+     * of the map changes. If the map is changed in place without calling
+     * {@link Map#changed()}, this method must be called instead.
+     */
+    public void clearLosTables() {
+	Arrays.fill(losTables, null);
+	creatureLosCache.clear();
+	geometry = null;
+    }
+
+    /**
+     * Run tasks on the pool and wait for them to finish.
+     * <p>
+     * On cancellation, running tasks stop at the next target square, and
+     * tasks that have not started yet return at once. This method always
+     * waits until all of them have returned, so no task of a cancelled
+     * computation writes into a LosMap after it. The tasks are not
+     * cancelled with <code>Future.cancel</code>: on the ForkJoinPool, that
+     * completes the Future while the task may still be running.
+     *
+     * @return <code>true</code> if all tasks were completed,
+     *   <code>false</code> if the computation was cancelled.
+     */
+    private boolean runTasks(List<Callable<Object>> ts) {
 	setTasksDone(0);
 	totalTasks = ts.size();
 	Future<?>[] fs = new Future<?>[totalTasks];
@@ -104,20 +522,56 @@ public class LosCalculator {
 	        throw new RuntimeException("LoS task", ex);
 	    }
 	}
+	return !cancelled;
+    }
+
+    /**
+     * Cancel the running LOS computation.
+     * <p>
+     * Can be called from any thread. <code>computeLos</code> returns as
+     * soon as all running tasks have finished their current target square.
+     * Until <code>resetCancelled</code> is called, new computations
+     * are cancelled immediately, so a cancel request is not lost if it
+     * arrives before the computation starts.
+     */
+    public void cancel() {
+	cancelled = true;
+    }
+
+    /**
+     * @return Returns <code>true</code> if the computation has been cancelled.
+     */
+    public boolean isCancelled() {
+	return cancelled;
+    }
+
+    /**
+     * Allow computations again after <code>cancel</code>.
+     * <p>
+     * Must not be called while a computation is running.
+     */
+    public void resetCancelled() {
+	cancelled = false;
     }
     
-    private Set<Location> getForestSquares(Map map) {
-	Set<Location> r = new HashSet<Location>();
-	for (int row = map.getHeight() - 1; row >= 0; row--) {
-	    for (int col = map.getWidth() - 1; col >= 0; col--) {
-		if (map.get(col, row).has(MapFeature.FOREST))
-		    r.add(new Location(col, row));
-	    }
-	}
-	return r;
+    /**
+     * Make sure the MapGeometry is for the current version of the map.
+     * <p>
+     * The geometry is only built again if the map was changed. It is
+     * immutable, and it is passed to the workers when their tasks are
+     * submitted, so they can use it without locking.
+     */
+    private void updateGeometry() {
+	if (geometry == null || !geometry.isFor(map))
+	    geometry = new MapGeometry(map);
     }
     
+    
     public void setMap(Map map, LosMap losMap) {
+	// the line templates do not depend on the map, but are not kept
+	// for the lifetime of the process
+	if (map != this.map && this.map != null)
+	    LineTemplate.clearCache();
 	this.map = map;
 	los = losMap;
     }
@@ -133,50 +587,234 @@ public class LosCalculator {
 	return 100 * done / totalTasks;
     }
     
-    private void addTasksFor(Location source, List<Callable<Object>> ts) {
+    /**
+     * Add one task per map row.
+     */
+    private void addTasksFor(Location source, List<Callable<Object>> ts, LosMap result) {
 	final int height = map.getHeight();
 	final int width = map.getWidth();
 	for (int row = 0; row < height; row++) {
+	    List<Location> targets = new ArrayList<Location>(width);
 	    for (int col = 0; col < width; col++) {
 		Location target = new Location(col, row);
 		if (!target.equals(source))
-		    ts.add(new LosTask(source, target, this, this.walls, this.forestSquares));
+		    targets.add(target);
 	    }
+	    ts.add(new LosTask(source, targets, this, wallIndex, result));
 	}
     }
 
-    private void addIfOnMap(Location source, List<Callable<Object>> ts, int col, int row, Set<Line> walls) {
+    private void addIfOnMap(List<Location> targets, int col, int row) {
 	if (col >= 0 && col < map.getWidth() && row >= 0 && row < map.getHeight()) {
-	    ts.add(new LosTask(source, new Location(col,row), this, walls, this.forestSquares));
+	    targets.add(new Location(col, row));
 	}
     }
     
-    private void addTasksFor(Creature c, List<Callable<Object>> ts, Set<Line> noSmokeWalls) {
+    /**
+     * Add the tasks for a creature. A creature that covers more than one
+     * square gets one FootprintLosTask per map row, otherwise there are
+     * tasks for its square as for a single source.
+     */
+    private void addTasksFor(Creature c, List<Callable<Object>> ts, WallIndex noSmokeWalls, LosMap result) {
 	Location loc = c.getLocation();
 	int col = loc.getColumn();
 	int row = loc.getRow();
 	int sz = c.getSize().sizeSquares();
+	if (sz > 1) {
+	    for (int y = 0; y < map.getHeight(); y++) {
+		List<Location> targets = new ArrayList<Location>(map.getWidth());
+		for (int x = 0; x < map.getWidth(); x++)
+		    targets.add(new Location(x, y));
+		ts.add(new FootprintLosTask(c, targets, this, wallIndex, noSmokeWalls, result));
+	    }
+	    return;
+	}
 	for (int xoff = 0; xoff < sz; xoff++) {
 	    for (int yoff = 0; yoff < sz; yoff++) {
 		Location source = new Location(col+xoff, row+yoff); 
-		addTasksFor(source, ts);
+		addTasksFor(source, ts, result);
 		if (noSmokeWalls != null) {
-		    // Add adjacent squares using noSmokeWalls
-		    addIfOnMap(source, ts, col - 1, row - 1, noSmokeWalls);
-		    addIfOnMap(source, ts, col + sz, row - 1, noSmokeWalls);
-		    addIfOnMap(source, ts, col - 1, row + sz, noSmokeWalls);
-		    addIfOnMap(source, ts, col + sz, row + sz, noSmokeWalls);
-		    for (int i = 0; i < sz; i++) {
-			addIfOnMap(source, ts, col - 1, row + i, noSmokeWalls);
-			addIfOnMap(source, ts, col + sz, row + i, noSmokeWalls);
-			addIfOnMap(source, ts, col + i, row - 1, noSmokeWalls);
-			addIfOnMap(source, ts, col + i, row + sz, noSmokeWalls);
-		    }
+		    addAdjacentTasksFor(source, c, ts, noSmokeWalls, result);
 		}
 	    }
 	}
     }
 
+    private void addAdjacentTasksFor(Creature c, List<Callable<Object>> ts, WallIndex noSmokeWalls, LosMap result) {
+	Location loc = c.getLocation();
+	int sz = c.getSize().sizeSquares();
+	for (int xoff = 0; xoff < sz; xoff++) {
+	    for (int yoff = 0; yoff < sz; yoff++) {
+		addAdjacentTasksFor(new Location(loc.getColumn() + xoff, loc.getRow() + yoff), c, ts, noSmokeWalls, result);
+	    }
+	}
+    }
+
+    /**
+     * Add tasks from source to the squares adjacent to a creature using noSmokeWalls.
+     */
+    private void addAdjacentTasksFor(Location source, Creature c, List<Callable<Object>> ts, WallIndex noSmokeWalls, LosMap result) {
+	Location loc = c.getLocation();
+	int col = loc.getColumn();
+	int row = loc.getRow();
+	int sz = c.getSize().sizeSquares();
+	List<Location> targets = new ArrayList<Location>(4 * sz + 4);
+	addIfOnMap(targets, col - 1, row - 1);
+	addIfOnMap(targets, col + sz, row - 1);
+	addIfOnMap(targets, col - 1, row + sz);
+	addIfOnMap(targets, col + sz, row + sz);
+	for (int i = 0; i < sz; i++) {
+	    addIfOnMap(targets, col - 1, row + i);
+	    addIfOnMap(targets, col + sz, row + i);
+	    addIfOnMap(targets, col + i, row - 1);
+	    addIfOnMap(targets, col + i, row + sz);
+	}
+	ts.add(new LosTask(source, targets, this, noSmokeWalls, result));
+    }
+
+    /**
+     * Check if a square is adjacent to a creature.
+     *
+     * @param c a Creature
+     * @param loc a Location
+     * @return <code>true</code> if loc is next to the creature, but not
+     *   occupied by it.
+     */
+    static boolean isAdjacent(Creature c, Location loc) {
+	int col = c.getLocation().getColumn();
+	int row = c.getLocation().getRow();
+	int sz = c.getSize().sizeSquares();
+	return loc.getColumn() >= col - 1 && loc.getColumn() <= col + sz
+	    && loc.getRow() >= row - 1 && loc.getRow() <= row + sz
+	    && !c.occupiesSquare(loc);
+    }
+
+    /**
+     * Create a new LosTester for the current algorithm and settings.
+     *
+     * @param source the Location to test LOS from
+     * @param walls the walls and forest squares
+     * @return a new LosTester
+     */
+    LosTester newTester(Location source, WallIndex walls) {
+	return algorithm.newTester(source, walls, randomTestsPerSquare, logger);
+    }
+
+    /**
+     * Get a LosTester for the current worker thread.
+     * <p>
+     * Each thread keeps the testers it used last, up to
+     * {@value #WORKER_TESTERS}, and reuses them for the same source and
+     * walls as long as the settings do not change. So the squares of a
+     * large creature get one tester per worker, not one per task.
+     *
+     * @param source the Location to test LOS from
+     * @param walls the walls and forest squares
+     * @return a LosTester
+     */
+    LosTester getTester(Location source, WallIndex walls) {
+	WorkerTesters w = workerTesters.get();
+	if (w == null || w.algorithm != algorithm || w.rndTests != randomTestsPerSquare) {
+	    w = new WorkerTesters(algorithm, randomTestsPerSquare);
+	    workerTesters.set(w);
+	}
+	TesterKey key = new TesterKey(source, walls);
+	LosTester t = w.get(key);
+	if (t == null) {
+	    t = newTester(source, walls);
+	    w.put(key, t);
+	}
+	return t;
+    }
+
+    /**
+     * The key of a creature's LOS in the creature LOS cache.
+     */
+    private static final class CreatureLosKey {
+	final Location location;
+	final CreatureSize size;
+	final boolean smoke;
+
+	CreatureLosKey(Creature c, boolean smoke) {
+	    location = c.getLocation();
+	    size = c.getSize();
+	    this.smoke = smoke;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof CreatureLosKey))
+		return false;
+	    CreatureLosKey k = (CreatureLosKey) obj;
+	    return location.equals(k.location) && size == k.size && smoke == k.smoke;
+	}
+
+	@Override
+	public int hashCode() {
+	    return (location.hashCode() * 31 + size.ordinal()) * 2 + (smoke ? 1 : 0);
+	}
+    }
+
+    /**
+     * The LOS of a single creature.
+     */
+    private static final class CreatureLos {
+	final BitSet squares;
+	final int numRndLos;
+
+	CreatureLos(BitSet squares, int numRndLos) {
+	    this.squares = squares;
+	    this.numRndLos = numRndLos;
+	}
+    }
+
+    /**
+     * The key of a LosTester in the testers of a worker thread.
+     */
+    private static final class TesterKey {
+	final Location source;
+	final WallIndex walls;
+
+	TesterKey(Location source, WallIndex walls) {
+	    this.source = source;
+	    this.walls = walls;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    if (!(obj instanceof TesterKey))
+		return false;
+	    TesterKey k = (TesterKey) obj;
+	    return source.equals(k.source) && walls == k.walls;
+	}
+
+	@Override
+	public int hashCode() {
+	    return source.hashCode() * 31 + System.identityHashCode(walls);
+	}
+    }
+
+    /**
+     * The LosTesters of a worker thread, least recently used first, with
+     * the settings they were made for.
+     */
+    private static final class WorkerTesters extends LinkedHashMap<TesterKey,LosTester> {
+	private static final long serialVersionUID = 1L;
+	final LosAlgorithm algorithm;
+	final int rndTests;
+
+	WorkerTesters(LosAlgorithm algorithm, int rndTests) {
+	    super(16, 0.75f, true);
+	    this.algorithm = algorithm;
+	    this.rndTests = rndTests;
+	}
+
+	@Override
+	protected boolean removeEldestEntry(java.util.Map.Entry<TesterKey,LosTester> eldest) {
+	    return size() > WORKER_TESTERS;
+	}
+    }
+
     /**
      * @return Returns the smokeBlocksLOS.
      */
@@ -202,6 +840,13 @@ public class LosCalculator {
 	return map;
     }
 
+    /**
+     * @return Returns the geometry of the map used by the running computation.
+     */
+    MapGeometry getGeometry() {
+	return geometry;
+    }
+
     /**
      * @return Returns the logger.
      */
@@ -246,6 +891,70 @@ public class LosCalculator {
      */
     public void setRandomTestsPerSquare(int randomTestsPerSquare) {
         this.randomTestsPerSquare = randomTestsPerSquare;
+        clearLosTables();
+    }
+
+    /**
+     * @return Returns the algorithm.
+     */
+    public LosAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param algorithm The algorithm to set.
+     */
+    public void setAlgorithm(LosAlgorithm algorithm) {
+        this.algorithm = algorithm;
+        clearLosTables();
+    }
+
+    /**
+     * @return Returns the useLosTable.
+     */
+    public boolean isUseLosTable() {
+        return useLosTable;
+    }
+
+    /**
+     * @param useLosTable The useLosTable to set.
+     */
+    public void setUseLosTable(boolean useLosTable) {
+        this.useLosTable = useLosTable;
+        if (!useLosTable)
+            clearLosTables();
+    }
+
+    /**
+     * @return Returns the symmetric.
+     */
+    public boolean isSymmetric() {
+        return symmetric;
+    }
+
+    /**
+     * Compute LOS tables using the symmetry of LOS between two squares.
+     * <p>
+     * This only has an effect if the LOS table is used.
+     *
+     * @param symmetric The symmetric to set.
+     */
+    public void setSymmetric(boolean symmetric) {
+        this.symmetric = symmetric;
+    }
+
+    /**
+     * @return Returns the losTableCache.
+     */
+    public LosTableCache getLosTableCache() {
+        return losTableCache;
+    }
+
+    /**
+     * @param losTableCache The losTableCache to set, or <code>null</code> for no cache.
+     */
+    public void setLosTableCache(LosTableCache losTableCache) {
+        this.losTableCache = losTableCache;
     }
 
     /**
@@ -262,42 +971,231 @@ public class LosCalculator {
 	return numRndLos;
     }
 
+    /**
+     * @return Returns the numRndLos with smoke of the last call of
+     *   <code>computeLos(LosMap)</code>.
+     */
+    synchronized public int getNumRndSmokeLos() {
+	return numRndSmokeLos;
+    }
+
     public synchronized void bumpNumRndLos() {
 	numRndLos++;
     }
 }
 
 
+/**
+ * Tests LOS from one source square to a list of target squares.
+ */
 class LosTask implements Callable<Object> {
     
     private final Location source;
-    private final Location target;
+    private final List<Location> targets;
     private final LosCalculator context;
-    private final Set<Line> walls;
-    private final Set<Location> forestSquares;
+    private final WallIndex walls;
+    private final LosMap losMap;
     
-    public LosTask(Location source, Location target, LosCalculator context, Set<Line> walls, Set<Location> forestSquares) {
+    public LosTask(Location source, List<Location> targets, LosCalculator context, WallIndex walls, LosMap losMap) {
 	this.source = source;
-	this.target = target;
+	this.targets = targets;
 	this.context = context;
 	this.walls = walls;
-	this.forestSquares = forestSquares;
+	this.losMap = losMap;
     }
     
     public Object call() {
-	Map map = context.getMap();
-	LosMap losMap = context.getLos();
-	LosTester t = new LosTester(source, map.getDimension(), walls, forestSquares, context.getRandomTestsPerSquare(), context.getLogger());
-	MapSquare s = map.get(target);
-	if (!s.isSolid()) {
-	    int r = t.testLocation(target);
-	    if (r >= 0) {
-		losMap.set(target);
-		if (r > 0)
-		    context.bumpNumRndLos();
+	MapGeometry geometry = context.getGeometry();
+	LosTester t = context.getTester(source, walls);
+	for (Location target : targets) {
+	    if (context.isCancelled())
+		break;
+	    if (losMap.get(target))
+		continue; // seen from another square
+	    if (!geometry.isSolid(target)) {
+		int r = t.testLocation(target);
+		if (r >= 0) {
+		    losMap.set(target);
+		    if (r > 0)
+			context.bumpNumRndLos();
+		}
 	    }
 	}
 	context.bumpTasksDone();
 	return null;
     }
 }
+
+
+/**
+ * Tests LOS from all squares of a creature to a list of target squares.
+ * <p>
+ * A target is visible if any square of the creature sees it, so the squares
+ * are tried in turn until one of them sees the target. The squares on the
+ * edges of the creature that face the target are tried first. The squares
+ * adjacent to the creature are tested with noSmokeWalls, if given.
+ * <p>
+ * The testers come from <code>LosCalculator.getTester</code>, so the
+ * tasks for the rows of the map that run on the same worker share them.
+ */
+class FootprintLosTask implements Callable<Object> {
+
+    private final Creature creature;
+    private final List<Location> targets;
+    private final LosCalculator context;
+    private final WallIndex walls;
+    private final WallIndex noSmokeWalls;
+    private final LosMap losMap;
+
+    public FootprintLosTask(Creature creature, List<Location> targets, LosCalculator context,
+                            WallIndex walls, WallIndex noSmokeWalls, LosMap losMap) {
+	this.creature = creature;
+	this.targets = targets;
+	this.context = context;
+	this.walls = walls;
+	this.noSmokeWalls = noSmokeWalls;
+	this.losMap = losMap;
+    }
+
+    public Object call() {
+	MapGeometry geometry = context.getGeometry();
+	final int sz = creature.getSize().sizeSquares();
+	final int col = creature.getLocation().getColumn();
+	final int row = creature.getLocation().getRow();
+	LosTester[] testers = new LosTester[sz * sz];
+	LosTester[] noSmokeTesters = new LosTester[sz * sz];
+	int[] order = new int[sz * sz];
+	for (Location target : targets) {
+	    if (context.isCancelled())
+		break;
+	    if (losMap.get(target) || geometry.isSolid(target))
+		continue;
+	    // Without smoke, a creature sees at least as much as with smoke,
+	    // so adjacent squares need only be tested without smoke.
+	    boolean noSmoke = noSmokeWalls != null && LosCalculator.isAdjacent(creature, target);
+	    LosTester[] ts = noSmoke ? noSmokeTesters : testers;
+	    int n = orderSources(target, col, row, sz, order);
+	    for (int k = 0; k < n; k++) {
+		int i = order[k];
+		if (ts[i] == null) {
+		    Location source = new Location(col + i % sz, row + i / sz);
+		    ts[i] = context.getTester(source, noSmoke ? noSmokeWalls : walls);
+		}
+		int r = ts[i].testLocation(target);
+		if (r >= 0) {
+		    losMap.set(target);
+		    if (r > 0)
+			context.bumpNumRndLos();
+		    break;
+		}
+	    }
+	}
+	context.bumpTasksDone();
+	return null;
+    }
+
+    /**
+     * Put the indices (row offset * size + column offset) of the creature's
+     * squares into order: first the squares on an edge facing the target,
+     * then the others. The target itself is left out.
+     *
+     * @return the number of indices
+     */
+    private static int orderSources(Location target, int col, int row, int sz, int[] order) {
+	int tc = target.getColumn();
+	int tr = target.getRow();
+	boolean inside = tc >= col && tc < col + sz && tr >= row && tr < row + sz;
+	int n = inside ? sz * sz - 1 : sz * sz;
+	int first = 0;
+	int last = n;
+	for (int yoff = 0; yoff < sz; yoff++) {
+	    for (int xoff = 0; xoff < sz; xoff++) {
+		if (col + xoff == tc && row + yoff == tr)
+		    continue;
+		boolean facing = (xoff == 0 && tc < col) || (xoff == sz - 1 && tc >= col + sz)
+		    || (yoff == 0 && tr < row) || (yoff == sz - 1 && tr >= row + sz);
+		if (facing)
+		    order[first++] = yoff * sz + xoff;
+		else
+		    order[--last] = yoff * sz + xoff;
+	    }
+	}
+	return n;
+    }
+}
+
+
+class LosTableTask implements Callable<Object> {
+
+    private final Location source;
+    private final LosTable table;
+    private final LosTable noSmokeTable;
+    private final LosCalculator context;
+    private final WallIndex walls;
+    private final boolean symmetric;
+    private BitSet mirrored;
+    private BitSet mirroredRnd;
+
+    public LosTableTask(Location source, LosTable table, LosTable noSmokeTable, LosCalculator context,
+                        WallIndex walls, boolean symmetric) {
+	this.source = source;
+	this.table = table;
+	this.noSmokeTable = noSmokeTable;
+	this.context = context;
+	this.walls = walls;
+	this.symmetric = symmetric;
+    }
+
+    public Object call() {
+	MapGeometry geometry = context.getGeometry();
+	final int width = geometry.getWidth();
+	final int height = geometry.getHeight();
+	final int sourceIndex = source.getRow() * width + source.getColumn();
+	LosTester t = context.getTester(source, walls);
+	BitSet row = new BitSet(width * height);
+	if (symmetric) {
+	    mirrored = new BitSet(width * height);
+	    mirroredRnd = new BitSet(width * height);
+	}
+	int rnd = 0;
+	for (int y = 0; y < height; y++) {
+	    if (context.isCancelled())
+		return null;
+	    for (int x = 0; x < width; x++) {
+		Location target = new Location(x, y);
+		int i = y * width + x;
+		boolean mirror = symmetric && x != source.getColumn() && y != source.getRow();
+		if (mirror && i < sourceIndex)
+		    continue; // tested from target
+		if (noSmokeTable != null && !noSmokeTable.get(source, target))
+		    continue; // blocked without smoke
+		if (!target.equals(source) && !geometry.isSolid(target)) {
+		    int r = t.testLocation(target);
+		    if (r >= 0) {
+			row.set(i);
+			if (r > 0)
+			    rnd++;
+			if (mirror) {
+			    mirrored.set(i);
+			    if (r > 0)
+				mirroredRnd.set(i);
+			}
+		    }
+		}
+	    }
+	}
+	table.setRow(source, row, rnd);
+	context.bumpTasksDone();
+	return null;
+    }
+
+    /**
+     * Copy the results of a symmetric task to the rows of the targets.
+     * <p>
+     * Must be called after all tasks for the table are done.
+     */
+    public void mirror() {
+	for (int i = mirrored.nextSetBit(0); i >= 0; i = mirrored.nextSetBit(i + 1))
+	    table.setMirrored(i, source, mirroredRnd.get(i));
+    }
+}
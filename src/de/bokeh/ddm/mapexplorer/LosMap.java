@@ -25,13 +25,17 @@
 package de.bokeh.ddm.mapexplorer;
 
 import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * LOS information for a map.
  * <p>
  * Just stores a single boolean value for each square.
- * All methods are synchronized, so that multiple threads
- * can access a LosMap concurrently.
+ * Multiple threads can access a LosMap concurrently without locking:
+ * the bits are stored in an AtomicLongArray and updated with
+ * compare-and-set, and the number of LOS squares is kept up to date
+ * with each change.
  * 
  * @author Christoph Breitkopf
  */
@@ -39,7 +43,8 @@ public class LosMap {
 
     private final Dimension size;
     private final int width; // performance
-    private final BitSet los;
+    private final AtomicLongArray los;
+    private final AtomicInteger count;
 
     /**
      * Create a new LosMap.
@@ -49,7 +54,8 @@ public class LosMap {
     public LosMap(Dimension size) {
 	this.size = size;
 	this.width = size.getWidth();
-	this.los = new BitSet(width * size.getHeight());
+	this.los = new AtomicLongArray((width * size.getHeight() + 63) / 64);
+	this.count = new AtomicInteger();
     }
 
     /**
@@ -65,8 +71,12 @@ public class LosMap {
      * <p>
      * All squares are reset to false.
      */
-    synchronized public void clear() {
-	los.clear();
+    public void clear() {
+	for (int i = los.length() - 1; i >= 0; i--) {
+	    long old = los.getAndSet(i, 0);
+	    if (old != 0)
+		count.addAndGet(-Long.bitCount(old));
+	}
     }
     
     /**
@@ -76,8 +86,8 @@ public class LosMap {
      * @param row the row
      * @return the LOS state of the map square at col,row.
      */
-    synchronized public boolean get(int col, int row) {
-	return los.get(row * width + col);
+    public boolean get(int col, int row) {
+	return get(row * width + col);
     }
     
     /**
@@ -86,8 +96,8 @@ public class LosMap {
      * @param loc a Location
      * @return the LOS state of the map square at loc
      */
-    synchronized public boolean get(Location loc) {
-	return los.get(loc.getRow() * width + loc.getColumn());
+    public boolean get(Location loc) {
+	return get(loc.getRow() * width + loc.getColumn());
     }
     
     /**
@@ -97,8 +107,11 @@ public class LosMap {
      * @param row the row
      * @param value the LOS state to set
      */
-    synchronized public void set(int col, int row, boolean value) {
-	los.set(row * width + col, value);
+    public void set(int col, int row, boolean value) {
+	if (value)
+	    set(row * width + col);
+	else
+	    reset(row * width + col);
     }
     
     /**
@@ -107,8 +120,8 @@ public class LosMap {
      * @param col the column
      * @param row the row
      */
-    synchronized public void set(int col, int row) {
-	los.set(row * width + col);
+    public void set(int col, int row) {
+	set(row * width + col);
     }
     
     /**
@@ -116,16 +129,80 @@ public class LosMap {
      * 
      * @param loc a Location
      */
-    synchronized public void set(Location loc) {
-	los.set(loc.getRow() * width + loc.getColumn());
+    public void set(Location loc) {
+	set(loc.getRow() * width + loc.getColumn());
     }
     
+    /**
+     * Set the LOS state of several map squares to true.
+     * 
+     * @param squares the squares to set, indexed by <code>row * width + column</code>
+     */
+    public void setAll(BitSet squares) {
+	long[] words = squares.toLongArray();
+	int n = Math.min(words.length, los.length());
+	for (int i = 0; i < n; i++) {
+	    long bits = words[i];
+	    if (bits == 0)
+		continue;
+	    long old;
+	    do {
+		old = los.get(i);
+		if ((old | bits) == old)
+		    break;
+	    } while (!los.compareAndSet(i, old, old | bits));
+	    int added = Long.bitCount(bits & ~old);
+	    if (added != 0)
+		count.addAndGet(added);
+	}
+    }
+    
+    /**
+     * Get the squares with LOS.
+     *
+     * @return a new BitSet, indexed by <code>row * width + column</code>
+     */
+    public BitSet getAll() {
+	long[] words = new long[los.length()];
+	for (int i = 0; i < words.length; i++)
+	    words[i] = los.get(i);
+	return BitSet.valueOf(words);
+    }
+
     /**
      * Return the numer of LOS squares.
      * @return The number of LOS squares. 
      */
-    synchronized public int getLosCount() {
-	return los.cardinality();
+    public int getLosCount() {
+	return count.get();
+    }
+    
+    private boolean get(int i) {
+	return (los.get(i >> 6) & (1L << i)) != 0;
+    }
+    
+    private void set(int i) {
+	final int w = i >> 6;
+	final long mask = 1L << i;
+	long old;
+	do {
+	    old = los.get(w);
+	    if ((old & mask) != 0)
+		return;
+	} while (!los.compareAndSet(w, old, old | mask));
+	count.incrementAndGet();
+    }
+    
+    private void reset(int i) {
+	final int w = i >> 6;
+	final long mask = 1L << i;
+	long old;
+	do {
+	    old = los.get(w);
+	    if ((old & mask) == 0)
+		return;
+	} while (!los.compareAndSet(w, old, old & ~mask));
+	count.decrementAndGet();
     }
     
 }
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the fast paths of the LOS computation.
+ * <p>
+ * The counters are shared by all LosTesters and are shown by
+ * LosBenchmark. Each LosTester counts in its own fields and adds its
+ * counts here after each target, and only if the statistics are enabled,
+ * so the workers do not contend for the counters otherwise. Reading them
+ * while a computation is running gives approximate values.
+ */
+final class LosStatistics {
+
+    /** Number of pairs tested with sample lines. */
+    static final AtomicLong pairs = new AtomicLong();
+    /** Pairs found visible along the last clear line of the tester. */
+    static final AtomicLong lastLineHits = new AtomicLong();
+    /** Pairs found visible from center to center. */
+    static final AtomicLong centerHits = new AtomicLong();
+    /** Pairs found visible from corner to matching corner. */
+    static final AtomicLong cornerHits = new AtomicLong();
+    /** Pairs tested with a LineTemplate. */
+    static final AtomicLong templatePairs = new AtomicLong();
+    /** Lines blocked by one of the recently blocking walls of a SegmentKernel. */
+    static final AtomicLong wallCacheHits = new AtomicLong();
+    /** Lines blocked by another wall. */
+    static final AtomicLong wallCacheMisses = new AtomicLong();
+    
+    private static volatile boolean enabled;
+    
+    private LosStatistics() {
+    }
+
+    /**
+     * @return Returns <code>true</code> if the counters are updated.
+     */
+    static boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Enable or disable updating the counters. Off by default.
+     * @param on <code>true</code> to update the counters
+     */
+    static void setEnabled(boolean on) {
+	enabled = on;
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    static void reset() {
+	pairs.set(0);
+	lastLineHits.set(0);
+	centerHits.set(0);
+	cornerHits.set(0);
+	templatePairs.set(0);
+	wallCacheHits.set(0);
+	wallCacheMisses.set(0);
+    }
+
+    /**
+     * Describe the hit rates of the fast paths.
+     * @return a String, or <code>null</code> if no pairs were tested with sample lines.
+     */
+    static String report() {
+	long n = pairs.get();
+	if (n == 0)
+	    return null;
+	long last = lastLineHits.get();
+	long center = centerHits.get();
+	long corner = cornerHits.get();
+	long template = templatePairs.get();
+	String r = String.format("Probe lines: %d pairs, visible along last clear line %.1f%%, "
+	                         + "center to center %.1f%%, corners %.1f%%, full sample run %.1f%%",
+	                         n, 100.0 * last / n, 100.0 * center / n, 100.0 * corner / n,
+	                         100.0 * (n - last - center - corner) / n);
+	if (template > 0)
+	    r += String.format("%nLine templates used for %.1f%% of the full sample runs",
+	                       100.0 * template / (n - last - center - corner));
+	long hits = wallCacheHits.get();
+	long blocked = hits + wallCacheMisses.get();
+	if (blocked > 0)
+	    r += String.format("%nRecently blocking walls blocked %.2f%% of %d lines blocked by walls",
+	                       100.0 * hits / blocked, blocked);
+	return r;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.util.BitSet;
+
+/**
+ * LOS between all pairs of squares of a map.
+ * <p>
+ * Stores one row of bits per source square, in the same square order
+ * as LosMap. A table is valid for one Map and one smoke setting. It is
+ * filled in by LosCalculator, one row per task; after that it is only read.
+ */
+public class LosTable {
+
+    private final Map map;
+    private final int mapVersion;
+    private final boolean smokeBlocksLos;
+    private final int width;
+    private final int numSquares;
+    private final int rowWords;
+    private final long[] bits;
+    private final int[] numRndLos;
+
+    /**
+     * Create a new, empty LosTable.
+     *
+     * @param map the Map
+     * @param smokeBlocksLos whether smoke blocks LOS
+     */
+    LosTable(Map map, boolean smokeBlocksLos) {
+	this.map = map;
+	mapVersion = map.getVersion();
+	this.smokeBlocksLos = smokeBlocksLos;
+	width = map.getWidth();
+	numSquares = width * map.getHeight();
+	rowWords = (numSquares + 63) / 64;
+	bits = new long[numSquares * rowWords];
+	numRndLos = new int[numSquares];
+    }
+
+    /**
+     * Is this table valid for a map and smoke setting?
+     *
+     * @param m a Map
+     * @param smoke whether smoke blocks LOS
+     * @return <code>true</code> if this table was computed for exactly this map
+     *   and smoke setting, and the map was not changed since.
+     */
+    public boolean isFor(Map m, boolean smoke) {
+	return m == map && m.getVersion() == mapVersion && smoke == smokeBlocksLos;
+    }
+
+    /**
+     * @return Returns the map.
+     */
+    public Map getMap() {
+	return map;
+    }
+
+    /**
+     * @return Returns the smokeBlocksLos.
+     */
+    public boolean isSmokeBlocksLos() {
+	return smokeBlocksLos;
+    }
+
+    /**
+     * Does source have LOS to target?
+     *
+     * @param source a Location
+     * @param target a Location
+     * @return <code>true</code> if there is LOS from source to target.
+     */
+    public boolean get(Location source, Location target) {
+	int i = target.getRow() * width + target.getColumn();
+	long w = bits[index(source) * rowWords + (i >> 6)];
+	return (w & (1L << i)) != 0;
+    }
+
+    /**
+     * Get all squares visible from a source square.
+     *
+     * @param source a Location
+     * @return a new BitSet in LosMap square order.
+     */
+    public BitSet getRow(Location source) {
+	return BitSet.valueOf(LongBuffer.wrap(bits, index(source) * rowWords, rowWords));
+    }
+
+    /**
+     * Get the number of LOS squares from source that were found by random tests.
+     *
+     * @param source a Location
+     * @return the number of squares found by random tests.
+     */
+    public int getNumRndLos(Location source) {
+	return numRndLos[index(source)];
+    }
+
+    /**
+     * Store the row for a source square.
+     *
+     * @param source a Location
+     * @param row the squares visible from source
+     * @param rnd the number of squares found by random tests
+     */
+    void setRow(Location source, BitSet row, int rnd) {
+	int i = index(source);
+	long[] words = row.toLongArray();
+	System.arraycopy(words, 0, bits, i * rowWords, Math.min(words.length, rowWords));
+	numRndLos[i] = rnd;
+    }
+
+    /**
+     * Set LOS from a source square to target, copied from the LOS from
+     * target to source.
+     *
+     * @param sourceIndex the index of the source square, in LosMap order
+     * @param target a Location
+     * @param rnd whether LOS was found by random tests
+     */
+    void setMirrored(int sourceIndex, Location target, boolean rnd) {
+	int i = index(target);
+	bits[sourceIndex * rowWords + (i >> 6)] |= 1L << i;
+	if (rnd)
+	    numRndLos[sourceIndex]++;
+    }
+
+    /**
+     * Write this table in binary form.
+     *
+     * @param out a DataOutput
+     * @throws IOException on write errors
+     */
+    void write(DataOutput out) throws IOException {
+	out.writeInt(width);
+	out.writeInt(numSquares);
+	for (int i = 0; i < numSquares; i++)
+	    out.writeInt(numRndLos[i]);
+	for (int i = 0; i < bits.length; i++)
+	    out.writeLong(bits[i]);
+    }
+
+    /**
+     * Read a table written by write.
+     *
+     * @param in a DataInput
+     * @param map the Map the table is for
+     * @param smokeBlocksLos whether smoke blocks LOS
+     * @return the LosTable
+     * @throws IOException on read errors or if the table does not fit the map
+     */
+    static LosTable read(DataInput in, Map map, boolean smokeBlocksLos) throws IOException {
+	LosTable t = new LosTable(map, smokeBlocksLos);
+	if (in.readInt() != t.width || in.readInt() != t.numSquares)
+	    throw new IOException("LOS table size does not match map");
+	for (int i = 0; i < t.numSquares; i++)
+	    t.numRndLos[i] = in.readInt();
+	for (int i = 0; i < t.bits.length; i++)
+	    t.bits[i] = in.readLong();
+	return t;
+    }
+
+    private int index(Location loc) {
+	return loc.getRow() * width + loc.getColumn();
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * A directory of LOS tables stored in binary files.
+ * <p>
+ * Tables are stored under a key computed from everything the LOS result
+ * depends on: the geometry of the map (size, solid and forest squares,
+ * walls), the smoke setting, the LOS algorithm, the number of random tests,
+ * and ENGINE_VERSION. The map name is not part of the key.
+ */
+public class LosTableCache {
+
+    /**
+     * Version of the LOS computation.
+     * <p>
+     * Must be incremented whenever a change to the LOS code changes results,
+     * so that old tables are no longer used.
+     */
+    public static final int ENGINE_VERSION = 1;
+
+    private static final String SUFFIX = ".lostable";
+
+    private final File dir;
+    private final Logger logger;
+
+    /**
+     * Create a new LosTableCache.
+     *
+     * @param dir the cache directory; it is created when the first table is stored.
+     */
+    public LosTableCache(File dir) {
+	this.dir = dir;
+	logger = Logger.getLogger(this.getClass().getPackage().getName());
+    }
+
+    /**
+     * @return Returns the dir.
+     */
+    public File getDir() {
+	return dir;
+    }
+
+    /**
+     * Load a table.
+     *
+     * @param map the Map
+     * @param smokeBlocksLos whether smoke blocks LOS
+     * @param algorithm the LOS algorithm
+     * @param rndTests number of random tests per square
+     * @return the table, or <code>null</code> if there is no valid table in the cache.
+     */
+    public LosTable load(Map map, boolean smokeBlocksLos, LosAlgorithm algorithm, int rndTests) {
+	String key = getKey(map, smokeBlocksLos, algorithm, rndTests);
+	File f = new File(dir, key + SUFFIX);
+	if (!f.exists())
+	    return null;
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	    try {
+		if (!in.readUTF().equals(key)) {
+		    logger.warning("LOS table " + f + ": key mismatch");
+		    return null;
+		}
+		return LosTable.read(in, map, smokeBlocksLos);
+	    } finally {
+		in.close();
+	    }
+	} catch (IOException ex) {
+	    logger.warning("can't read LOS table " + f + ": " + ex);
+	    return null;
+	}
+    }
+
+    /**
+     * Store a table.
+     * <p>
+     * Errors are logged, but otherwise ignored.
+     *
+     * @param table the LosTable
+     * @param algorithm the LOS algorithm used to compute the table
+     * @param rndTests number of random tests per square used to compute the table
+     */
+    public void store(LosTable table, LosAlgorithm algorithm, int rndTests) {
+	String key = getKey(table.getMap(), table.isSmokeBlocksLos(), algorithm, rndTests);
+	File f = new File(dir, key + SUFFIX);
+	File tmp = new File(dir, key + ".tmp");
+	try {
+	    if (!dir.isDirectory() && !dir.mkdirs())
+		throw new IOException("can't create directory " + dir);
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	    try {
+		out.writeUTF(key);
+		table.write(out);
+	    } finally {
+		out.close();
+	    }
+	    // replace atomically, so that concurrent readers never see a partial file
+	    if (!tmp.renameTo(f)) {
+		f.delete();
+		if (!tmp.renameTo(f))
+		    throw new IOException("can't rename " + tmp);
+	    }
+	} catch (IOException ex) {
+	    logger.warning("can't write LOS table " + f + ": " + ex);
+	    tmp.delete();
+	}
+    }
+
+    /**
+     * Compute the cache key for a table.
+     *
+     * @param map the Map
+     * @param smokeBlocksLos whether smoke blocks LOS
+     * @param algorithm the LOS algorithm
+     * @param rndTests number of random tests per square
+     * @return the key, a hex string
+     */
+    public static String getKey(Map map, boolean smokeBlocksLos, LosAlgorithm algorithm, int rndTests) {
+	StringBuilder sb = new StringBuilder();
+	sb.append("engine ").append(ENGINE_VERSION);
+	sb.append("\nalgorithm ").append(algorithm);
+	sb.append("\nrnd ").append(algorithm == LosAlgorithm.SAMPLING ? rndTests : 0);
+	sb.append("\nsmoke ").append(smokeBlocksLos);
+	sb.append("\nsize ").append(map.getWidth()).append(' ').append(map.getHeight());
+	sb.append("\nsquares ");
+	for (int row = 0; row < map.getHeight(); row++) {
+	    for (int col = 0; col < map.getWidth(); col++) {
+		MapSquare s = map.get(col, row);
+		sb.append(s.isSolid() ? 'S' : s.has(MapFeature.FOREST) ? 'F' : '.');
+	    }
+	}
+	// Walls, in a well-defined order
+	List<String> walls = new ArrayList<String>();
+	for (Line w : map.getWalls(smokeBlocksLos))
+	    walls.add(w.toString());
+	Collections.sort(walls);
+	for (String w : walls)
+	    sb.append('\n').append(w);
+	return sha1(sb.toString());
+    }
+
+    private static String sha1(String s) {
+	try {
+	    MessageDigest md = MessageDigest.getInstance("SHA-1");
+	    byte[] digest = md.digest(s.getBytes(Charset.forName("UTF-8")));
+	    StringBuilder sb = new StringBuilder();
+	    for (byte b : digest)
+		sb.append(String.format("%02x", b & 0xff));
+	    return sb.toString();
+	} catch (NoSuchAlgorithmException ex) {
+	    throw new AssertionError(ex);
+	}
+    }
+
+}
@@ -37,39 +37,84 @@ public class LosTester {
 
     private final Logger logger;
     
-    private final Location location;
+    protected final Location location;
     private final double x;
     private final double y;
     
     private final int width;
     private final int height;
     
-    private final Set<Line> allWalls;
-    private Line[] walls;
-    private boolean haveDiagonalWalls;
-    private final Set<Location> allForestSquares;
-    private Location[] forestSquares;
+    private final WallIndex wallIndex;
+    private final WallIndex.Search search;
+    protected Line[] walls;
+    protected boolean haveDiagonalWalls;
+    protected Location[] forestSquares;
+    private final SegmentKernel kernel;
     
     private final Random rng;
     private final int rndTests;
     
+    private BitSet hidden;
+    
+    // offset numbers of the last clear sample line, see probe
+    private int lastI = -1;
+    private int lastJ;
+    private boolean lastFine;
+    
+    // counts for LosStatistics since the last flushStatistics
+    private long pairs;
+    private long lastLineHits;
+    private long centerHits;
+    private long cornerHits;
+    private long templatePairs;
+    
+    // for each offset number, if the sample point in the source or the
+    // target square sees the center of its square, see seesCenter
+    private static final byte UNKNOWN = 0;
+    private static final byte SEES = 1;
+    private static final byte BLOCKED = 2;
+    private final byte[] sourceCenter = new byte[TEST_OFFSETS_FINE.length];
+    private final byte[] targetCenter = new byte[TEST_OFFSETS_FINE.length];
+    
+    // the sample lines that touch no wall, see testTemplate
+    private final long[] clearLines = new long[(FIXED_TEST_OFFSETS_NORMAL.length * FIXED_TEST_OFFSETS_NORMAL.length + 63) >> 6];
+    
+    // scratch space for the umbra computation
+    private final double[] planeA = new double[9];
+    private final double[] planeB = new double[9];
+    private final double[] planeC = new double[9];
+    
     /**
      * Construct a new LOS Tester.
      * @param loc the Location to test LOS from
      * @param size the size of the map
      * @param walls the walls
+     * @param forestSquares the forest squares
      * @param rndTests the number of random tests to perform
      * @param logger a Logger
      */
     public LosTester(Location loc, Dimension size, Set<Line> walls, Set<Location> forestSquares, int rndTests, Logger logger) {
+	this(loc, new WallIndex(size, walls, forestSquares), rndTests, logger);
+    }
+    
+    /**
+     * Construct a new LOS Tester.
+     * @param loc the Location to test LOS from
+     * @param wallIndex the walls and forest squares of the map
+     * @param rndTests the number of random tests to perform
+     * @param logger a Logger
+     */
+    public LosTester(Location loc, WallIndex wallIndex, int rndTests, Logger logger) {
 	this.location = loc;
 	this.rndTests = rndTests;
 	x = loc.x();
 	y = loc.y();
+	Dimension size = wallIndex.getSize();
 	width = size.getWidth();
 	height = size.getHeight();
-	this.allWalls = walls;
-	this.allForestSquares = forestSquares;
+	this.wallIndex = wallIndex;
+	search = wallIndex.newSearch();
+	kernel = new SegmentKernel(wallIndex.getNumWalls(), wallIndex.getNumForestSquares());
 	rng = new Random();
 	this.logger = logger;
     }
@@ -84,6 +129,8 @@ public class LosTester {
     public int testLocation(Location loc) {
 	if (loc.equals(location))
 	    return 0;
+	if (isHidden(loc))
+	    return -1;
 	
 	int r;
 	if (location.x() < loc.x()) {
@@ -107,9 +154,163 @@ public class LosTester {
 		r = testEdges(loc, 1);
 	    }
 	}
+	flushStatistics();
 	return r;
     }
 
+    /**
+     * Add the counts of this tester to LosStatistics if it is enabled,
+     * and start counting again. The counts are kept in plain fields while
+     * testing, so the workers do not share them.
+     */
+    private void flushStatistics() {
+	if (LosStatistics.isEnabled()) {
+	    LosStatistics.pairs.addAndGet(pairs);
+	    LosStatistics.lastLineHits.addAndGet(lastLineHits);
+	    LosStatistics.centerHits.addAndGet(centerHits);
+	    LosStatistics.cornerHits.addAndGet(cornerHits);
+	    LosStatistics.templatePairs.addAndGet(templatePairs);
+	}
+	pairs = 0;
+	lastLineHits = 0;
+	centerHits = 0;
+	cornerHits = 0;
+	templatePairs = 0;
+	kernel.flushStatistics();
+    }
+
+    /**
+     * Check if a square is hidden from the whole source square by a
+     * single wall.
+     * <p>
+     * This is computed once for all targets, the first time it is
+     * needed. It is conservative: squares hidden only by several walls
+     * together, by forest, or by the diagonal wall center checks are not
+     * included, they are left to the line tests.
+     * 
+     * @param loc a Location
+     * @return <code>true</code> if every line from the source square
+     * to loc touches the same wall.
+     */
+    protected boolean isHidden(Location loc) {
+	if (hidden == null)
+	    hidden = computeHidden();
+	return hidden.get(loc.getRow() * width + loc.getColumn());
+    }
+    
+    /**
+     * Rasterize the umbras of all walls.
+     * @return the hidden squares, indexed by <code>row * width + column</code>
+     */
+    private BitSet computeHidden() {
+	BitSet r = new BitSet(width * height);
+	double[] coords = wallIndex.getWallCoordinates();
+	double[] lo = new double[height + 1];
+	double[] hi = new double[height + 1];
+	for (int i = wallIndex.getNumWalls() - 1; i >= 0; i--) {
+	    int k = 4 * i;
+	    addUmbra(r, lo, hi, coords[k], coords[k+1], coords[k+2], coords[k+3]);
+	}
+	return r;
+    }
+    
+    /**
+     * Add the squares in the umbra of wall a-b to a set.
+     * <p>
+     * A point q is in the umbra if the segments from all four corners of
+     * the source square to q touch the wall. For a corner c this is the
+     * closed wedge at c spanned by a and b, cut off at the line a-b, so
+     * the umbra is the intersection of at most nine half-planes. It is
+     * convex, so a square is in it if its corners are.
+     * <p>
+     * The half-planes are used to find the candidate columns for each row,
+     * the ends of each range are then checked with the exact line test.
+     */
+    private void addUmbra(BitSet r, double[] lo, double[] hi, double ax, double ay, double bx, double by) {
+	final int sx = location.getColumn();
+	final int sy = location.getRow();
+	final double ex = bx - ax;
+	final double ey = by - ay;
+	int n = 0;
+	int side = 0;
+	for (int i = 0; i < 4; i++) {
+	    int cx = sx + (i & 1);
+	    int cy = sy + (i >> 1);
+	    double o = ex * (cy - ay) - ey * (cx - ax);
+	    if (o == 0) {
+		// on the wall: every segment from c touches it
+		if ((cx - ax) * (cx - bx) + (cy - ay) * (cy - by) <= 0)
+		    continue;
+		return;
+	    }
+	    int s = o > 0 ? 1 : -1;
+	    if (side == 0)
+		side = s;
+	    else if (side != s)
+		return; // the wall line crosses the source square
+	    // s * orient(c, a, q) >= 0
+	    planeA[n] = s * ((ay - cy) * cx - (ax - cx) * cy);
+	    planeB[n] = s * (cy - ay);
+	    planeC[n] = s * (ax - cx);
+	    n++;
+	    // s * orient(c, b, q) <= 0
+	    planeA[n] = -s * ((by - cy) * cx - (bx - cx) * cy);
+	    planeB[n] = -s * (cy - by);
+	    planeC[n] = -s * (bx - cx);
+	    n++;
+	}
+	// side * orient(a, b, q) <= 0
+	planeA[n] = side * (ex * ay - ey * ax);
+	planeB[n] = side * ey;
+	planeC[n] = -side * ex;
+	n++;
+	
+	for (int j = 0; j <= height; j++) {
+	    double l = 0;
+	    double h = width;
+	    for (int k = 0; k < n; k++) {
+		double v = planeA[k] + planeC[k] * j;
+		double b = planeB[k];
+		if (b > 0)
+		    l = Math.max(l, -v / b);
+		else if (b < 0)
+		    h = Math.min(h, -v / b);
+		else if (v < 0)
+		    h = -1;
+	    }
+	    lo[j] = l;
+	    hi[j] = h;
+	}
+	for (int row = 0; row < height; row++) {
+	    int c1 = (int) Math.ceil(Math.max(lo[row], lo[row+1]));
+	    int c2 = (int) Math.floor(Math.min(hi[row], hi[row+1])) - 1;
+	    while (c1 <= c2 && !inUmbra(c1, row, ax, ay, bx, by))
+		c1++;
+	    while (c2 > c1 && !inUmbra(c2, row, ax, ay, bx, by))
+		c2--;
+	    if (c1 <= c2)
+		r.set(row * width + c1, row * width + c2 + 1);
+	}
+    }
+    
+    /**
+     * Exact check if all lines between the corners of the source square
+     * and the corners of a square touch wall a-b.
+     */
+    private boolean inUmbra(int col, int row, double ax, double ay, double bx, double by) {
+	final int sx = location.getColumn();
+	final int sy = location.getRow();
+	for (int i = 0; i < 4; i++) {
+	    int cx = sx + (i & 1);
+	    int cy = sy + (i >> 1);
+	    for (int j = 0; j < 4; j++) {
+		if (!Line.intersectsOrCoincides(ax, ay, bx, by, cx, cy, col + (j & 1), row + (j >> 1)))
+		    return false;
+	    }
+	}
+	return true;
+    }
+    
     // protected for testing only
     protected static double[] makeTestOffsets(int steps) {
 	assert steps > 0 && Integer.bitCount(steps) == 1;
@@ -133,31 +334,153 @@ public class LosTester {
     private static final int TEST_STEPS_NORMAL = 32;
     private static final int TEST_STEPS_FINE = 64;
     
+    private static final double[] TEST_OFFSETS_NORMAL = makeTestOffsets(TEST_STEPS_NORMAL);
+    private static final double[] TEST_OFFSETS_FINE = makeTestOffsets(TEST_STEPS_FINE);
+    static final long[] FIXED_TEST_OFFSETS_NORMAL = toFixed(TEST_OFFSETS_NORMAL);
+    private static final long[] FIXED_TEST_OFFSETS_FINE = toFixed(TEST_OFFSETS_FINE);
+    
+    /**
+     * Convert test offsets to fixed point. The offsets are multiples
+     * of 1/512, so they are exact.
+     */
+    private static long[] toFixed(double[] offsets) {
+	long[] r = new long[offsets.length];
+	for (int i = 0; i < offsets.length; i++) {
+	    r[i] = (long) (offsets[i] * SegmentKernel.FIXED_ONE);
+	    assert r[i] == offsets[i] * SegmentKernel.FIXED_ONE;
+	}
+	return r;
+    }
+    
     /**
      * Test two diagonals
+     * <p>
+     * The sample lines are tested in fixed point if the walls are exactly
+     * representable that way. The random tests always use doubles.
+     * 
      * @param loc target Location
      * @param slope the slope. 0: ascending, 1: descending
-     * @return Something
+     * @return 0 if LOS was found with the normal tests. A number greater than
+     * 0 if LOS was found after that many random tests. A negative number
+     * if no LOS was found.
      */
-    private int testEdges(Location loc, int slope) {
+    protected int testEdges(Location loc, int slope) {
 	getRelevantWalls(loc);
 	
 	int x1 = location.getColumn();
 	int x2 = loc.getColumn();
 	
-        double[] testOffsets = makeTestOffsets(haveDiagonalWalls ? TEST_STEPS_FINE : TEST_STEPS_NORMAL);
-	if (slope == 0) {
+        double[] testOffsets = haveDiagonalWalls ? TEST_OFFSETS_FINE : TEST_OFFSETS_NORMAL;
+        long[] fixedOffsets = haveDiagonalWalls ? FIXED_TEST_OFFSETS_FINE : FIXED_TEST_OFFSETS_NORMAL;
+        boolean fixed = kernel.isFixed();
+	int y1 = location.getRow();
+	int y2 = loc.getRow();
+	if (probe(x1, y1, x2, y2, slope, fixed))
+	    return 0;
+	final int n = testOffsets.length;
+	LineTemplate template = null;
+	// a template also serves the reverse displacement
+	boolean reverse = x2 < x1 || (x2 == x1 && y2 < y1);
+	if (fixed && !search.isFoundOffGrid())
+	    template = reverse ? LineTemplate.get(x1 - x2, y1 - y2, slope != 0)
+		: LineTemplate.get(x2 - x1, y2 - y1, slope != 0);
+	// with diagonal walls, the center checks are done once for each
+	// sample point instead of once for each line: a source point that
+	// does not see its center ends its row, a target point is skipped
+	final boolean centers = haveDiagonalWalls;
+	if (centers) {
+	    Arrays.fill(sourceCenter, UNKNOWN);
+	    Arrays.fill(targetCenter, UNKNOWN);
+	}
+	if (template != null) {
+	    if (testTemplate(template, reverse, x1, y1, x2, y2, slope))
+		return 0;
+	} else if (slope == 0) {
 	    // ascending
-	    int y1 = location.getRow();
-	    int y2 = loc.getRow();
-	    for (double e1off : testOffsets) {
-		for (double e2off : testOffsets) {
-		    if (los(x1, e1off, y1, e1off, x2, e2off, y2, e2off)) {
-			return 0;
+	    if (fixed) {
+		for (int i = 0; i < n; i++) {
+		    long e1off = fixedOffsets[i];
+		    for (int j = 0; j < n; j++) {
+			if (centers && targetCenter[j] == BLOCKED)
+			    continue;
+			long e2off = fixedOffsets[j];
+			if (isClearFixed(x1, e1off, y1, e1off, x2, e2off, y2, e2off)) {
+			    if (centers) {
+				if (!seesCenter(sourceCenter, i, x1, y1, slope, true))
+				    break;
+				if (!seesCenter(targetCenter, j, x2, y2, slope, true))
+				    continue;
+			    }
+			    setLastLine(i, j);
+			    return 0;
+			}
+		    }
+		}
+	    } else {
+		for (int i = 0; i < n; i++) {
+		    double e1off = testOffsets[i];
+		    for (int j = 0; j < n; j++) {
+			if (centers && targetCenter[j] == BLOCKED)
+			    continue;
+			double e2off = testOffsets[j];
+			if (isClear(x1, e1off, y1, e1off, x2, e2off, y2, e2off)) {
+			    if (centers) {
+				if (!seesCenter(sourceCenter, i, x1, y1, slope, false))
+				    break;
+				if (!seesCenter(targetCenter, j, x2, y2, slope, false))
+				    continue;
+			    }
+			    setLastLine(i, j);
+			    return 0;
+			}
 		    }
 		}
 	    }
-	    // random tests
+	} else {
+	    // descending
+	    if (fixed) {
+		final long one = SegmentKernel.FIXED_ONE;
+		for (int i = 0; i < n; i++) {
+		    long e1off = fixedOffsets[i];
+		    for (int j = 0; j < n; j++) {
+			if (centers && targetCenter[j] == BLOCKED)
+			    continue;
+			long e2off = fixedOffsets[j];
+			if (isClearFixed(x1, e1off, y1, one - e1off, x2, e2off, y2, one - e2off)) {
+			    if (centers) {
+				if (!seesCenter(sourceCenter, i, x1, y1, slope, true))
+				    break;
+				if (!seesCenter(targetCenter, j, x2, y2, slope, true))
+				    continue;
+			    }
+			    setLastLine(i, j);
+			    return 0;
+			}
+		    }
+		}
+	    } else {
+		for (int i = 0; i < n; i++) {
+		    double e1off = testOffsets[i];
+		    for (int j = 0; j < n; j++) {
+			if (centers && targetCenter[j] == BLOCKED)
+			    continue;
+			double e2off = testOffsets[j];
+			if (isClear(x1, e1off, y1, 1 - e1off, x2, e2off, y2, 1 - e2off)) {
+			    if (centers) {
+				if (!seesCenter(sourceCenter, i, x1, y1, slope, false))
+				    break;
+				if (!seesCenter(targetCenter, j, x2, y2, slope, false))
+				    continue;
+			    }
+			    setLastLine(i, j);
+			    return 0;
+			}
+		    }
+		}
+	    }
+	}
+	// random tests
+	if (slope == 0) {
 	    for (int i = 1; i <= rndTests; i++) {
 		double e1off = rng.nextDouble();
 		double e2off = rng.nextDouble();
@@ -170,17 +493,6 @@ public class LosTester {
 		}
 	    }
 	} else {
-	    // descending
-	    int y1 = location.getRow();
-	    int y2 = loc.getRow();
-	    for (double e1off : testOffsets) {
-		for (double e2off : testOffsets) {
-		    if (los(x1, e1off, y1, 1 - e1off, x2, e2off, y2, 1 - e2off)) {
-			return 0;
-		    }
-		}
-	    }
-	    // random tests
 	    for (int i = 1; i <= rndTests; i++) {
 		double e1off = rng.nextDouble();
 		double e2off = rng.nextDouble();
@@ -198,37 +510,236 @@ public class LosTester {
     }
     
     
-    private boolean los(int p1x, double o1x, int p1y, double o1y,
+    /**
+     * Test the sample lines with a LineTemplate.
+     * <p>
+     * The template gives the lines that touch no wall. These are tested for
+     * forest, there are no diagonal walls and so no center checks. If
+     * reverse is set, the template is for the displacement from the target
+     * to the source, and the offset numbers of its lines are swapped.
+     * 
+     * @return <code>true</code> if a line is not blocked.
+     */
+    private boolean testTemplate(LineTemplate template, boolean reverse, int x1, int y1, int x2, int y2, int slope) {
+	templatePairs++;
+	if (reverse) {
+	    if (!template.findClearLines(wallIndex, x2, y2, clearLines))
+		return false;
+	} else {
+	    if (!template.findClearLines(wallIndex, x1, y1, clearLines))
+		return false;
+	}
+	final long[] offsets = FIXED_TEST_OFFSETS_NORMAL;
+	final int n = offsets.length;
+	final int numLines = template.getNumLines();
+	final int shift = SegmentKernel.FIXED_SHIFT;
+	final long one = SegmentKernel.FIXED_ONE;
+	for (int k = nextSetBit(clearLines, 0); k >= 0 && k < numLines; k = nextSetBit(clearLines, k + 1)) {
+	    int i = reverse ? k % n : k / n;
+	    int j = reverse ? k / n : k % n;
+	    long ax = ((long) x1 << shift) + offsets[i];
+	    long ay = ((long) y1 << shift) + (slope == 0 ? offsets[i] : one - offsets[i]);
+	    long bx = ((long) x2 << shift) + offsets[j];
+	    long by = ((long) y2 << shift) + (slope == 0 ? offsets[j] : one - offsets[j]);
+	    if (!kernel.isBlockedByForest(ax, ay, bx, by)) {
+		setLastLine(i, j);
+		return true;
+	    }
+	}
+	return false;
+    }
+    
+    private static int nextSetBit(long[] bits, int from) {
+	int w = from >> 6;
+	if (w >= bits.length)
+	    return -1;
+	long word = bits[w] & (-1L << from);
+	while (word == 0) {
+	    if (++w == bits.length)
+		return -1;
+	    word = bits[w];
+	}
+	return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+    
+    /**
+     * Test the sample lines that are most likely clear first.
+     * <p>
+     * These are the last clear line found by this tester, if it used the
+     * same offsets, the line from center to center, and the lines from
+     * corner to matching corner. All of them are also tested by the full
+     * run over the offsets, so this does not change the result. Counts
+     * are added to LosStatistics after each target, see flushStatistics.
+     * 
+     * @return <code>true</code> if one of the lines is not blocked.
+     */
+    private boolean probe(int x1, int y1, int x2, int y2, int slope, boolean fixed) {
+	pairs++;
+	final int center = (haveDiagonalWalls ? TEST_OFFSETS_FINE : TEST_OFFSETS_NORMAL).length - 1;
+	final boolean haveLast = lastI >= 0 && lastFine == haveDiagonalWalls;
+	if (haveLast && testLine(x1, y1, x2, y2, slope, fixed, lastI, lastJ)) {
+	    lastLineHits++;
+	    return true;
+	}
+	if (!(haveLast && lastI == center && lastJ == center)
+	    && testLine(x1, y1, x2, y2, slope, fixed, center, center)) {
+	    centerHits++;
+	    setLastLine(center, center);
+	    return true;
+	}
+	// offsets 0 and 1 are the corners
+	for (int i = 0; i < 2; i++) {
+	    if (!(haveLast && lastI == i && lastJ == i)
+		&& testLine(x1, y1, x2, y2, slope, fixed, i, i)) {
+		cornerHits++;
+		setLastLine(i, i);
+		return true;
+	    }
+	}
+	return false;
+    }
+    
+    /**
+     * Test the sample line with offsets number i and j.
+     * 
+     * @return <code>true</code> if the line is not blocked.
+     */
+    private boolean testLine(int x1, int y1, int x2, int y2, int slope, boolean fixed, int i, int j) {
+	if (fixed) {
+	    long[] offsets = haveDiagonalWalls ? FIXED_TEST_OFFSETS_FINE : FIXED_TEST_OFFSETS_NORMAL;
+	    long e1off = offsets[i];
+	    long e2off = offsets[j];
+	    if (slope == 0)
+		return losFixed(x1, e1off, y1, e1off, x2, e2off, y2, e2off);
+	    final long one = SegmentKernel.FIXED_ONE;
+	    return losFixed(x1, e1off, y1, one - e1off, x2, e2off, y2, one - e2off);
+	}
+	double[] offsets = haveDiagonalWalls ? TEST_OFFSETS_FINE : TEST_OFFSETS_NORMAL;
+	double e1off = offsets[i];
+	double e2off = offsets[j];
+	if (slope == 0)
+	    return los(x1, e1off, y1, e1off, x2, e2off, y2, e2off);
+	return los(x1, e1off, y1, 1 - e1off, x2, e2off, y2, 1 - e2off);
+    }
+    
+    private void setLastLine(int i, int j) {
+	lastI = i;
+	lastJ = j;
+	lastFine = haveDiagonalWalls;
+    }
+    
+    /**
+     * Test a single line between two points.
+     * <p>
+     * The points are given as square coordinates plus offsets within the square.
+     * Uses the walls and forest squares from the last call to
+     * <code>getRelevantWalls</code>, which are kept in a SegmentKernel,
+     * so no objects are created per line.
+     * 
+     * @return <code>true</code> if the line is not blocked.
+     */
+    protected boolean los(int p1x, double o1x, int p1y, double o1y,
                         int p2x, double o2x, int p2y, double o2y) {
+	if (!isClear(p1x, o1x, p1y, o1y, p2x, o2x, p2y, o2y))
+	    return false;
+	if (haveDiagonalWalls) {
+	    // point must have LoS to center of square
+	    if (!seesCenter(p1x, o1x, p1y, o1y) || !seesCenter(p2x, o2x, p2y, o2y))
+		return false;
+	}
+	return true;
+    }
+    
+    /**
+     * Test a single line between two points against the walls and forest
+     * squares only, without the center checks of <code>los</code>.
+     * 
+     * @return <code>true</code> if the line is not blocked.
+     */
+    private boolean isClear(int p1x, double o1x, int p1y, double o1y,
+                            int p2x, double o2x, int p2y, double o2y) {
         double x1 = p1x + o1x;
 	double y1 = p1y + o1y;
 	double x2 = p2x + o2x;
 	double y2 = p2y + o2y;
-	for (Line wall : walls) {
-	    if (wall.intersectsOrCoincides(x1, y1, x2, y2))
-		return false;
-	}
-	if (forestSquares != null) {
-	    Line line = new Line(x1, y1, x2, y2);
-	    for (Location sq : forestSquares) {
-		if (line.intersectsSquareAsPerForest(sq))
-		    return false;
-	    }		
-	}
+	return !kernel.isBlockedByWall(x1, y1, x2, y2) && !kernel.isBlockedByForest(x1, y1, x2, y2);
+    }
+    
+    /**
+     * @return <code>true</code> if no wall blocks the line from a point
+     *   to the center of its square.
+     */
+    private boolean seesCenter(int px, double ox, int py, double oy) {
+	return !kernel.isBlockedByWall(px + ox, py + oy, px + 0.5, py + 0.5);
+    }
+    
+    /**
+     * Test a single line between two points in fixed point.
+     * <p>
+     * Same as <code>los</code>, but the offsets are fixed-point values,
+     * see SegmentKernel.
+     * 
+     * @return <code>true</code> if the line is not blocked.
+     */
+    private boolean losFixed(int p1x, long o1x, int p1y, long o1y,
+                             int p2x, long o2x, int p2y, long o2y) {
+	if (!isClearFixed(p1x, o1x, p1y, o1y, p2x, o2x, p2y, o2y))
+	    return false;
 	if (haveDiagonalWalls) {
 	    // point must have LoS to center of square
-	    double c1x = p1x + 0.5;
-	    double c1y = p1y + 0.5;
-	    double c2x = p2x + 0.5;
-	    double c2y = p2y + 0.5;
-	    for (Line wall : walls) {
-		if (wall.intersectsOrCoincides(x1, y1, c1x, c1y)
-		    || wall.intersectsOrCoincides(x2, y2, c2x, c2y))
-		    return false;
-	    }
+	    if (!seesCenterFixed(p1x, o1x, p1y, o1y) || !seesCenterFixed(p2x, o2x, p2y, o2y))
+		return false;
 	}
 	return true;
     }
+    
+    /**
+     * <code>isClear</code> in fixed point.
+     * 
+     * @return <code>true</code> if the line is not blocked.
+     */
+    private boolean isClearFixed(int p1x, long o1x, int p1y, long o1y,
+                                 int p2x, long o2x, int p2y, long o2y) {
+	final int shift = SegmentKernel.FIXED_SHIFT;
+	long x1 = ((long) p1x << shift) + o1x;
+	long y1 = ((long) p1y << shift) + o1y;
+	long x2 = ((long) p2x << shift) + o2x;
+	long y2 = ((long) p2y << shift) + o2y;
+	return !kernel.isBlockedByWall(x1, y1, x2, y2) && !kernel.isBlockedByForest(x1, y1, x2, y2);
+    }
+    
+    /**
+     * <code>seesCenter</code> in fixed point.
+     */
+    private boolean seesCenterFixed(int px, long ox, int py, long oy) {
+	final int shift = SegmentKernel.FIXED_SHIFT;
+	final long half = SegmentKernel.FIXED_ONE / 2;
+	long x = (long) px << shift;
+	long y = (long) py << shift;
+	return !kernel.isBlockedByWall(x + ox, y + oy, x + half, y + half);
+    }
+    
+    /**
+     * The center check of <code>los</code> for sample point number i of a
+     * square, tested only once for each source and target. The result is
+     * kept in centers, which must be reset to UNKNOWN for a new target.
+     * 
+     * @return <code>true</code> if the point sees the center of its square.
+     */
+    private boolean seesCenter(byte[] centers, int i, int px, int py, int slope, boolean fixed) {
+	if (centers[i] == UNKNOWN) {
+	    boolean sees;
+	    if (fixed) {
+		long ox = FIXED_TEST_OFFSETS_FINE[i];
+		sees = seesCenterFixed(px, ox, py, (slope == 0) ? ox : SegmentKernel.FIXED_ONE - ox);
+	    } else {
+		double ox = TEST_OFFSETS_FINE[i];
+		sees = seesCenter(px, ox, py, (slope == 0) ? ox : 1 - ox);
+	    }
+	    centers[i] = sees ? SEES : BLOCKED;
+	}
+	return centers[i] == SEES;
+    }
 
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
@@ -236,35 +747,24 @@ public class LosTester {
     @Override
     public String toString() {
 	return "LosTester{(" + x + ";" + y + "),(" + width + ";" + height + "),"
-		+ allWalls.size() + " unique inside walls}";
+		+ wallIndex.getNumWalls() + " unique inside walls}";
     }
 
     
-    private void getRelevantWalls(Location dest) {
+    /**
+     * Collect the walls and forest squares relevant for LOS
+     * between the source location and dest.
+     * @param dest the target Location
+     */
+    protected void getRelevantWalls(Location dest) {
 	Rectangle bounds = new Rectangle(location, dest);
-	HashSet<Line> walls = new HashSet<Line>();
-        haveDiagonalWalls = false;
-	for (Line w : allWalls) {
-            if (w.intersects(bounds)) {
-                walls.add(w);
-                if (w.isDiagonal())
-                    haveDiagonalWalls = true;
-            }
-	}
-	this.walls = walls.toArray(new Line[walls.size()]);
-	
+	walls = search.findWalls(bounds);
+	haveDiagonalWalls = search.isFoundDiagonal();
 	if (dest.isNeighborOf(location))
-	    this.forestSquares = null;
-	else {
-	    HashSet<Location> forestSquares = new HashSet<Location>();
-	    for (Location sq : allForestSquares) {
-		if (bounds.contains(sq) && !sq.equals(dest) && !sq.equals(location))
-		    forestSquares.add(sq);
-	    }
-	    if (forestSquares.size() == 0)
-		this.forestSquares = null;
-	    else
-		this.forestSquares = forestSquares.toArray(new Location[forestSquares.size()]);
-	}
+	    forestSquares = null;
+	else
+	    forestSquares = search.findForestSquares(bounds, location, dest);
+	search.copyFoundWalls(kernel);
+	kernel.setForestSquares(forestSquares);
     }
 }
@@ -43,6 +43,7 @@ public class Map {
     private final List<Polygon> thickWalls;
     
     private String imageFile = null;
+    private int version;
     
     public Map(Dimension size) {
 	this(size.getWidth(), size.getHeight(), null);
@@ -71,6 +72,7 @@ public class Map {
      */
     public void addWall(Polygon wall) {
         thickWalls.add(wall);
+        version++;
         for (int row = 0; row < height; row++) {
             for (int col = 0; col < width; col++) {
                 if (wall.contains(col + 0.5, row + 0.5))
@@ -84,6 +86,7 @@ public class Map {
      * @param wall a Line
      */
     public void addWall(Line wall) {
+        version++;
         for (Line w : thinWalls) {
             Line ext = w.extend(wall);
             if (ext != null) {
@@ -285,6 +288,30 @@ public class Map {
 	assert 0 <= col && col < width;
 	assert 0 <= row && row < height;
 	map[width * row + col] = tile;
+	version++;
+    }
+    
+    /**
+     * Return the version of this map.
+     * <p>
+     * The version changes whenever walls or squares are added to the map
+     * or {@link #changed()} is called. It can be used to check whether
+     * information derived from the map is still current.
+     * 
+     * @return Returns the version.
+     */
+    public int getVersion() {
+	return version;
+    }
+    
+    /**
+     * Notify this map that squares have been changed in place.
+     * <p>
+     * Must be called after changing the features of a MapSquare returned
+     * by {@link #get(int, int)}, so that the map version changes.
+     */
+    public void changed() {
+	version++;
     }
     
     /**
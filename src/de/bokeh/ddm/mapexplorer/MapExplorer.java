@@ -67,6 +67,7 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
     private JComboBox<CreatureSize> cmbSize;
     private JPopupMenu contextMenu;
     private boolean busy;
+    private ComputationThread computation;
     private JFileChooser fileChooser;
     private JProgressBar progress;
     private DropTarget dropTarget;
@@ -88,6 +89,7 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
     }
     
     public void setMap(Map map) {
+	cancelComputation();
 	model.setMap(map);
 	setTitle();
 	mapPanel.setMap(map);
@@ -216,32 +218,25 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	}
 	
 	public void mousePressed(MouseEvent e) {
-	    if (app.isBusy()) {
-		Toolkit.getDefaultToolkit().beep();
-	    } else {
-		maybeShowPopup(e);
-	    }
+	    maybeShowPopup(e);
 	}
 	
 	public void mouseReleased(MouseEvent e) {
-	    if (app.isBusy()) {
-		Toolkit.getDefaultToolkit().beep();
-	    } else {
-		maybeShowPopup(e);
-	    }
+	    maybeShowPopup(e);
 	}
 	
 	public void mouseClicked(MouseEvent e) {
-	    if (app.isBusy()) {
-		Toolkit.getDefaultToolkit().beep();
-	    } else {
-		Location loc = app.mapPanel.getLocation(e.getX(), e.getY());
-		if (loc != null) {
-		    if (app.placeCreature(loc)) {
-			app.compute();
-			app.mapPanel.repaint();
-		    } else
-			Toolkit.getDefaultToolkit().beep();
+	    // a new placement supersedes a running computation
+	    Location loc = app.mapPanel.getLocation(e.getX(), e.getY());
+	    if (loc != null) {
+		boolean cancelled = app.cancelComputation();
+		if (app.placeCreature(loc)) {
+		    app.compute();
+		    app.mapPanel.repaint();
+		} else {
+		    Toolkit.getDefaultToolkit().beep();
+		    if (cancelled)
+			app.compute(); // restart for the old creature
 		}
 	    }
 	}
@@ -286,14 +281,48 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
     
     /**
      * Compute LOS.
+     * <p>
+     * A running computation is cancelled first.
      */
     private void compute() {
+	cancelComputation();
 	if (!model.getCreatures().isEmpty()) {
 	    setBusy(true, "computing...");
 	    model.setSmokeBlocksLos(chkSmoke.getModel().isSelected());
-	    ComputationThread c = new ComputationThread(this);
-	    c.start();
+	    computation = new ComputationThread(this);
+	    computation.start();
+	}
+    }
+
+    /**
+     * Cancel the running LOS computation, if any, and wait until it has stopped.
+     * <p>
+     * Must be called on the event dispatch thread.
+     * @return <code>true</code> if a running computation was cancelled.
+     */
+    private boolean cancelComputation() {
+	boolean cancelled = false;
+	if (computation != null) {
+	    if (computation.isAlive()) {
+		computation.cancelAndWait();
+		cancelled = true;
+	    }
+	    computation = null;
+	    if (isBusy())
+		setBusy(false, null);
 	}
+	return cancelled;
+    }
+
+    /**
+     * Is a computation the most recently started one?
+     * <p>
+     * Must be called on the event dispatch thread.
+     * @param c a ComputationThread
+     * @return <code>true</code> if c is the current computation.
+     */
+    public boolean isCurrentComputation(ComputationThread c) {
+	return c == computation;
     }
     
     public void setStatusText(String s) {
@@ -312,11 +341,21 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	
 	int numCPUs = Runtime.getRuntime().availableProcessors();
 	int rndTests = -1;
+	LosAlgorithm algorithm = LosAlgorithm.SAMPLING;
+	boolean useLosTable = false;
+	boolean symmetric = false;
+	boolean kernelBenchmark = false;
+	String cacheDir = null;
 
 	Properties properties = loadProperties();
 	p = properties.getProperty("mapexplorer.rndtests");
 	if (p != null)
 	    rndTests = Integer.parseInt(p);
+	p = properties.getProperty("mapexplorer.algorithm");
+	if (p != null)
+	    algorithm = LosAlgorithm.valueOfName(p);
+	useLosTable = properties.getProperty("mapexplorer.lostable", "false").equals("true");
+	cacheDir = properties.getProperty("mapexplorer.cachedir");
 	p = properties.getProperty("mapexplorer.threads");
 	if (p != null)
 	    numCPUs = Integer.parseInt(p);
@@ -329,6 +368,10 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	    if (args[i].equals("-benchmark")) {
 		mode = RunMode.BENCHMARK;
 	    }
+	    else if (args[i].equals("-kernel")) {
+		mode = RunMode.BENCHMARK;
+		kernelBenchmark = true;
+	    }
             else if (args[i].equals("-check")) {
                 mode = RunMode.CHECK;
             }
@@ -338,6 +381,18 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	    else if (args[i].equals("-rnd")) {
 		rndTests = Integer.parseInt(args[++i]);
 	    }
+	    else if (args[i].equals("-algorithm")) {
+		algorithm = LosAlgorithm.valueOfName(args[++i]);
+	    }
+	    else if (args[i].equals("-table")) {
+		useLosTable = true;
+	    }
+	    else if (args[i].equals("-symmetric")) {
+		symmetric = true;
+	    }
+	    else if (args[i].equals("-cache")) {
+		cacheDir = args[++i];
+	    }
             else if (args[i].equals("-fog")) {
                 fog = true;
             }
@@ -351,6 +406,11 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	}
 	if (numCPUs <= 0)
 	    numCPUs = 1;
+	LosTableCache cache = null;
+	if (cacheDir != null) {
+	    cache = new LosTableCache(new File(cacheDir));
+	    useLosTable = true;
+	}
 	
         switch (mode) {
         case GUI:
@@ -358,6 +418,9 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
             model.setUseMapImage(properties.getProperty("mapexplorer.usemapimage", "false").equals("true"));
             model.setUseVassalCoordinates(properties.getProperty("mapexplorer.usevassalcoordinates", "false").equals("true"));
             model.getLosCalculator().setRandomTestsPerSquare(rndTests);
+            model.getLosCalculator().setAlgorithm(algorithm);
+            model.getLosCalculator().setUseLosTable(useLosTable);
+            model.getLosCalculator().setLosTableCache(cache);
             MapExplorer app = new MapExplorer(model);
             app.imagesArchiveName = properties.getProperty("mapexplorer.images", "DDM_1-11-2.mod");
             app.start();
@@ -369,9 +432,16 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 		Map map = new MapReader().read(mapFile);
 		LosBenchmark b = new LosBenchmark(map, numCPUs, rndTests);
                 b.setSmokeBlocksLos(fog);
+                b.setAlgorithm(algorithm);
+                b.setUseLosTable(useLosTable);
+                b.setLosTableCache(cache);
+                b.setSymmetric(symmetric);
 		// b.setWriteLosFile(true);
 		// b.run();
-		b.fullBenchmark();
+		if (kernelBenchmark)
+		    b.kernelBenchmark();
+		else
+		    b.fullBenchmark();
 	    }
 	    catch (SyntaxError err) {
 		err.printStackTrace();
@@ -382,7 +452,7 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 	    break;
         case CHECK:
             try {
-                doCheck(numCPUs, rndTests);
+                doCheck(numCPUs, rndTests, algorithm, useLosTable, symmetric, cache);
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
@@ -396,6 +466,12 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
      * @see java.awt.event.ActionListener#actionPerformed(java.awt.event.ActionEvent)
      */
     public void actionPerformed(ActionEvent e) {
+	String command = e.getActionCommand();
+	boolean cancelled = false;
+	if (isBusy() && (ACTION_CLEAR.equals(command) || ACTION_PLACE.equals(command))) {
+	    // these supersede a running computation
+	    cancelled = cancelComputation();
+	}
 	if (isBusy()) {
 	    Toolkit.getDefaultToolkit().beep();
 	} else {
@@ -429,6 +505,8 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
 		    mapPanel.repaint();
 		} else {
 		    Toolkit.getDefaultToolkit().beep();
+		    if (cancelled)
+			compute(); // restart for the old creature
 		}
 	    }
 	    else if (cmd.equals(ACTION_WALL)) {
@@ -454,6 +532,9 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
      * @see java.awt.event.ItemListener#itemStateChanged(java.awt.event.ItemEvent)
      */
     public void itemStateChanged(ItemEvent e) {
+	if (isBusy() && e.getItemSelectable() == chkSmoke) {
+	    cancelComputation();
+	}
 	if (isBusy()) {
 	    Toolkit.getDefaultToolkit().beep();
 	    return;
@@ -714,6 +795,8 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
         
         int size() { return specs.size(); }
 
+        Entry get(int i) { return specs.get(i); }
+
         /* (non-Javadoc)
          * @see java.lang.Iterable#iterator()
          */
@@ -723,39 +806,64 @@ public class MapExplorer implements ActionListener, ItemListener, DropTargetList
         
     }
     
-    private static void doCheck(int numCPUs, int rndTests) throws IOException, SyntaxError {
+    private static void doCheck(int numCPUs, int rndTests, LosAlgorithm algorithm, boolean useLosTable,
+                                boolean symmetric, LosTableCache cache) throws IOException, SyntaxError {
         PrintStream out = System.out;
         BufferedReader checksFile = new BufferedReader(new FileReader("check-results.dat"));
         CheckSpecs specs = CheckSpecs.parseFile(checksFile);
         checksFile.close();
         final int tests = specs.size();
         int errors = 0;
-        int i = 0;
         long timeSoFar = 0;
         long specTimeSoFar = 0;
         final long specTimeTotal = specs.getTotalElapsedTime();
-        for (CheckSpecs.Entry spec : specs) {
-            i++;
-            out.format("[%d/%d] %s", i, tests, spec.mapName);
-            if (spec.fog)
-                out.print(" (fog enabled)");
+        for (int i = 0; i < tests; i++) {
+            CheckSpecs.Entry spec = specs.get(i);
+            // a map checked with and without fog is run only once
+            CheckSpecs.Entry fogSpec = null;
+            if (!spec.fog && i + 1 < tests && specs.get(i + 1).fog
+                && specs.get(i + 1).mapName.equals(spec.mapName)) {
+                fogSpec = specs.get(++i);
+                out.format("[%d-%d/%d] %s (with and without fog)", i, i + 1, tests, spec.mapName);
+            } else {
+                out.format("[%d/%d] %s", i + 1, tests, spec.mapName);
+                if (spec.fog)
+                    out.print(" (fog enabled)");
+            }
             out.flush();
             Map map = new MapReader().read(spec.mapName);
             LosBenchmark b = new LosBenchmark(map, numCPUs, rndTests);
             b.setLogLevel(java.util.logging.Level.WARNING);
             b.setSmokeBlocksLos(spec.fog);
+            b.setAlgorithm(algorithm);
+            b.setUseLosTable(useLosTable);
+            b.setLosTableCache(cache);
+            b.setSymmetric(symmetric);
             b.setWriteLosFile(true);
-            long[] result = b.run();
-            if (spec.matches(result)) {
-                out.print(" - success");
+            CheckSpecs.Entry[] entries;
+            long[][] results;
+            if (fogSpec == null) {
+                entries = new CheckSpecs.Entry[] { spec };
+                results = new long[][] { b.run() };
             } else {
-                errors++;
-                out.format(" - failed: expected %d,%d but got %d,%d,%d",
-                           spec.squaresTested, spec.totalLos,
-                           result[0], result[1], result[2]);
+                entries = new CheckSpecs.Entry[] { spec, fogSpec };
+                results = b.runWithAndWithoutSmoke();
+            }
+            for (int k = 0; k < entries.length; k++) {
+                CheckSpecs.Entry e = entries[k];
+                long[] result = results[k];
+                out.print(k == 0 ? " - " : ", with fog - ");
+                if (e.matches(result)) {
+                    out.print("success");
+                } else {
+                    errors++;
+                    out.format("failed: expected %d,%d but got %d,%d,%d",
+                               e.squaresTested, e.totalLos,
+                               result[0], result[1], result[2]);
+                }
+                specTimeSoFar += e.elapsedTime;
             }
-            timeSoFar += result[3];
-            specTimeSoFar += spec.elapsedTime;
+            timeSoFar += results[0][3];
             long percentDone = 100 * specTimeSoFar / specTimeTotal;
             long remMs = (long) ((specTimeTotal - specTimeSoFar) * ((double) timeSoFar / specTimeSoFar));
             out.format(" [%d%% done, remaining time: %s]\n", percentDone, formatRuntime(remMs));
@@ -43,6 +43,9 @@ public class MapExplorerModel {
     private boolean useVassalCoordinates = false;
     
     private final LosCalculator losCalculator;
+    private boolean losComplete; // losMap holds the LOS for creatures, smoke setting and map
+    private Rectangle changedWalls; // elemental walls changed since losMap was computed
+    private boolean wallsAdded;
     
     public MapExplorerModel(int numThreads) {
 	smokeBlocksLos = false;
@@ -57,16 +60,38 @@ public class MapExplorerModel {
      */
     public void clearLos() {
 	losMap.clear();
+	losComplete = false;
     }
     
     /**
      * Compute LOS.
+     * <p>
+     * If only an elemental wall was toggled since the last complete
+     * computation, the LOS is updated instead of computed from scratch.
+     *
+     * @return <code>true</code> if the computation was completed,
+     *   <code>false</code> if it was cancelled.
      */
-    public void computeLos() {
+    public boolean computeLos() {
 	losCalculator.setMap(map, losMap);
 	losCalculator.setCreatures(creatures);
 	losCalculator.setSmokeBlocksLos(smokeBlocksLos);
-	losCalculator.computeLos();
+	boolean done;
+	if (isLosUpdatePending())
+	    done = losCalculator.updateLos(changedWalls, wallsAdded);
+	else
+	    done = losCalculator.computeLos();
+	changedWalls = null;
+	losComplete = done;
+	return done;
+    }
+
+    /**
+     * @return Returns <code>true</code> if the next call of
+     *   <code>computeLos</code> will only update the current LOS.
+     */
+    public boolean isLosUpdatePending() {
+	return losComplete && changedWalls != null;
     }
 
     /**
@@ -89,6 +114,8 @@ public class MapExplorerModel {
     public final void setMap(Map map) {
         this.map = map;
         this.losMap = new LosMap(map.getDimension());
+        losComplete = false;
+        losCalculator.clearLosTables();
         removeAllCreatures();
     }
     
@@ -99,6 +126,7 @@ public class MapExplorerModel {
 	}
 	if (map.canPlaceCreature(c)) {
 	    creatures.add(c);
+	    losComplete = false;
 	    return true;
 	}
 	return false;
@@ -110,6 +138,7 @@ public class MapExplorerModel {
     
     public final void removeAllCreatures() {
 	creatures.clear();
+	losComplete = false;
     }
 
     /**
@@ -123,6 +152,8 @@ public class MapExplorerModel {
      * @param smokeBlocksLos The smokeBlocksLos to set.
      */
     public void setSmokeBlocksLos(boolean smokeBlocksLos) {
+        if (smokeBlocksLos != this.smokeBlocksLos)
+            losComplete = false;
         this.smokeBlocksLos = smokeBlocksLos;
     }
 
@@ -156,6 +187,7 @@ public class MapExplorerModel {
 		    map.get(loc.getColumn() + coff, loc.getRow() + roff).removeFeature(MapFeature.ELEMENTAL_WALL);
 		}
 	    }
+	    wallsChanged(new Rectangle(loc, size), false);
 	} else {
 	    // Add a wall
 	    for (int roff = 0; roff < size; roff++) {
@@ -170,10 +202,23 @@ public class MapExplorerModel {
 		    map.get(loc.getColumn() + coff, loc.getRow() + roff).addFeature(MapFeature.ELEMENTAL_WALL);
 		}
 	    }
+	    wallsChanged(new Rectangle(loc, size), true);
 	}
+	map.changed();
 	return true;
     }
 
+    /**
+     * Remember a change of elemental walls for the next LOS update.
+     * Only a single change can be applied as an update.
+     */
+    private void wallsChanged(Rectangle r, boolean added) {
+	if (changedWalls != null)
+	    losComplete = false;
+	changedWalls = r;
+	wallsAdded = added;
+    }
+
     /**
      * @return Returns the useMapImage.
      */
@@ -0,0 +1,173 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+
+/**
+ * The parts of a Map that are used for the LOS computation.
+ * <p>
+ * A MapGeometry is an immutable snapshot of one version of a map: the
+ * solid, forest and smoke squares, and the walls for LOS with and without
+ * smoke, indexed by square. It is built once per map version and can be
+ * shared by all worker threads, while the Map itself may be changed by
+ * the GUI.
+ */
+public final class MapGeometry {
+
+    private final Map map;
+    private final int version;
+    private final int width;
+    private final int height;
+    private final BitSet solid;
+    private final BitSet forest;
+    private final BitSet smoke;
+    private final Set<Line> walls;
+    private final Set<Line> smokeWalls;
+    private final WallIndex wallIndex;
+    private final WallIndex smokeWallIndex;
+
+    /**
+     * Create the geometry for the current version of a map.
+     *
+     * @param map a Map
+     */
+    public MapGeometry(Map map) {
+	this.map = map;
+	version = map.getVersion();
+	width = map.getWidth();
+	height = map.getHeight();
+	solid = new BitSet(width * height);
+	forest = new BitSet(width * height);
+	smoke = new BitSet(width * height);
+	for (int row = 0; row < height; row++) {
+	    for (int col = 0; col < width; col++) {
+		MapSquare s = map.get(col, row);
+		int i = row * width + col;
+		if (s.isSolid())
+		    solid.set(i);
+		if (s.has(MapFeature.FOREST))
+		    forest.set(i);
+		if (s.has(MapFeature.SMOKE))
+		    smoke.set(i);
+	    }
+	}
+	walls = Collections.unmodifiableSet(map.getWalls(false));
+	wallIndex = new WallIndex(map.getDimension(), walls, forest);
+	if (smoke.isEmpty()) {
+	    smokeWalls = walls;
+	    smokeWallIndex = wallIndex;
+	} else {
+	    smokeWalls = Collections.unmodifiableSet(map.getWalls(true));
+	    smokeWallIndex = new WallIndex(map.getDimension(), smokeWalls, forest);
+	}
+    }
+
+    /**
+     * Check if this geometry is for the current version of a map.
+     *
+     * @param m a Map
+     * @return <code>true</code> if this geometry was made from m, and m
+     *   was not changed since.
+     */
+    public boolean isFor(Map m) {
+	return m == map && m.getVersion() == version;
+    }
+
+    /**
+     * @return Returns the map version.
+     */
+    public int getVersion() {
+	return version;
+    }
+
+    /**
+     * @return Returns the width.
+     */
+    public int getWidth() {
+	return width;
+    }
+
+    /**
+     * @return Returns the height.
+     */
+    public int getHeight() {
+	return height;
+    }
+
+    /**
+     * @return Returns the size of the map.
+     */
+    public Dimension getSize() {
+	return new Dimension(width, height);
+    }
+
+    public boolean isSolid(int col, int row) {
+	return solid.get(row * width + col);
+    }
+
+    public boolean isSolid(Location loc) {
+	return isSolid(loc.getColumn(), loc.getRow());
+    }
+
+    public boolean isForest(int col, int row) {
+	return forest.get(row * width + col);
+    }
+
+    public boolean isSmoke(int col, int row) {
+	return smoke.get(row * width + col);
+    }
+
+    /**
+     * @return Returns <code>true</code> if the map has smoke squares.
+     */
+    public boolean hasSmoke() {
+	return !smoke.isEmpty();
+    }
+
+    /**
+     * Get the walls for the LOS computation.
+     *
+     * @param smokeBlocksLos a boolean indicating whether smoke or fog blocks LoS
+     * @return an unmodifiable set of Lines.
+     */
+    public Set<Line> getWalls(boolean smokeBlocksLos) {
+	return smokeBlocksLos ? smokeWalls : walls;
+    }
+
+    /**
+     * Get the walls and forest squares, indexed by square.
+     * <p>
+     * If the map has no smoke, the same WallIndex is returned for both
+     * settings.
+     *
+     * @param smokeBlocksLos a boolean indicating whether smoke or fog blocks LoS
+     * @return a WallIndex
+     */
+    public WallIndex getWallIndex(boolean smokeBlocksLos) {
+	return smokeBlocksLos ? smokeWallIndex : wallIndex;
+    }
+
+}
@@ -0,0 +1,559 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.Arrays;
+
+/**
+ * Tests line segments against walls and forest squares kept in
+ * primitive arrays.
+ * <p>
+ * The coordinates of all walls are stored one after the other in a
+ * single array, together with their differences, so that a sample line
+ * is tested against all walls in one loop that neither follows
+ * references nor creates objects. The results are the same as with
+ * <code>Line.intersectsOrCoincides</code> and
+ * <code>Line.intersectsSquareAsPerForest</code>: the double arithmetic
+ * is checked with <code>Line.filteredIntersection</code>, and a test is
+ * only repeated in exact arithmetic if its result is uncertain. Instead
+ * of an error bound for each value, a single bound is used for a sample
+ * line, computed from the largest coordinate of the line and the walls.
+ * <p>
+ * The walls are also stored in fixed point, as <code>long</code> values
+ * in units of 1/{@value #FIXED_ONE} of a square, if their coordinates are
+ * exactly representable that way. The wall coordinates of all maps are
+ * multiples of 1/2, and the sample points used by LosTester are multiples
+ * of 1/512, so the intersection test can then be done exactly in integer
+ * arithmetic with the <code>long</code> methods.
+ * <p>
+ * A SegmentKernel is filled with the walls and forest squares between a
+ * source and a target, and then used for all sample lines between them.
+ * It is not thread-safe.
+ * <p>
+ * Neighboring sample lines, and the lines to neighboring targets, are
+ * mostly blocked by the same wall. So the kernel remembers the walls that
+ * blocked the last lines, by their id in the WallIndex, and tests those
+ * first, in the order of their last use, and leaves them out of the scan
+ * over the other walls. This is kept across calls to
+ * <code>setWalls</code> as long as the walls are still among the new
+ * ones.
+ */
+final class SegmentKernel {
+
+    /** Number of values stored per wall. */
+    private static final int STRIDE = 6;
+
+    /** Description of the kernel, as reported by the kernel benchmark. */
+    static final String DESCRIPTION = "scalar, in fixed point if the walls allow it";
+
+    /** Number of fraction bits of fixed-point coordinates. */
+    static final int FIXED_SHIFT = 10;
+    /** The fixed-point value of 1. */
+    static final long FIXED_ONE = 1L << FIXED_SHIFT;
+    /** Fixed-point coordinates must not be larger, so that no products overflow. */
+    private static final double FIXED_LIMIT = 1 << 24;
+    /** Number of recently blocking walls tested first. */
+    private static final int RECENT = 4;
+
+    private final double[] walls; // startX, startY, endX, endY, dx, dy per wall
+    private final long[] fixedWalls; // as walls, in fixed point
+    private boolean fixed;
+    private int numWalls;
+    private double maxWallCoord;
+    private final int[] wallIds; // WallIndex id per wall, or -1
+    private final int[] recentIds = new int[RECENT]; // most recently blocking first
+    private final int[] recentWalls = new int[RECENT]; // their number in walls, or -1
+    // the valid recentWalls in ascending order, then numWalls
+    private final int[] skippedWalls = new int[RECENT + 1];
+    private int numSkippedWalls;
+    private long recentHits;
+    private long recentMisses;
+    private final int[] forestCol;
+    private final int[] forestRow;
+    private int numForestSquares;
+    private double maxForestCoord;
+
+    /**
+     * Create a new SegmentKernel.
+     *
+     * @param maxWalls the maximum number of walls
+     * @param maxForestSquares the maximum number of forest squares
+     */
+    SegmentKernel(int maxWalls, int maxForestSquares) {
+	walls = new double[STRIDE * maxWalls];
+	fixedWalls = new long[STRIDE * maxWalls];
+	wallIds = new int[maxWalls];
+	Arrays.fill(recentIds, -1);
+	forestCol = new int[maxForestSquares];
+	forestRow = new int[maxForestSquares];
+    }
+
+    private void setWall(int i, double x1, double y1, double x2, double y2) {
+	int k = STRIDE * i;
+	walls[k] = x1;
+	walls[k + 1] = y1;
+	walls[k + 2] = x2;
+	walls[k + 3] = y2;
+	walls[k + 4] = x2 - x1;
+	walls[k + 5] = y2 - y1;
+	maxWallCoord = maxCoord(maxWallCoord, x1, y1, x2, y2);
+	double fx1 = x1 * FIXED_ONE;
+	double fy1 = y1 * FIXED_ONE;
+	double fx2 = x2 * FIXED_ONE;
+	double fy2 = y2 * FIXED_ONE;
+	if (isFixed(fx1) && isFixed(fy1) && isFixed(fx2) && isFixed(fy2)) {
+	    fixedWalls[k] = (long) fx1;
+	    fixedWalls[k + 1] = (long) fy1;
+	    fixedWalls[k + 2] = (long) fx2;
+	    fixedWalls[k + 3] = (long) fy2;
+	    fixedWalls[k + 4] = fixedWalls[k + 2] - fixedWalls[k];
+	    fixedWalls[k + 5] = fixedWalls[k + 3] - fixedWalls[k + 1];
+	} else {
+	    fixed = false;
+	}
+    }
+
+    /**
+     * @return Returns <code>true</code> if v, a coordinate multiplied by
+     *   {@value #FIXED_ONE}, is exactly representable in fixed point.
+     */
+    static boolean isFixed(double v) {
+	return v == Math.rint(v) && Math.abs(v) <= FIXED_LIMIT;
+    }
+
+    /**
+     * @return Returns <code>true</code> if all walls are exactly
+     *   representable in fixed point, so that the <code>long</code>
+     *   methods can be used.
+     */
+    boolean isFixed() {
+	return fixed;
+    }
+
+    /**
+     * Set the walls.
+     *
+     * @param coords wall coordinates as returned by <code>WallIndex.getWallCoordinates</code>
+     * @param ids the ids of the walls to use
+     * @param n the number of ids
+     */
+    void setWalls(double[] coords, int[] ids, int n) {
+	fixed = true;
+	maxWallCoord = 0;
+	Arrays.fill(recentWalls, -1);
+	for (int i = 0; i < n; i++) {
+	    int id = ids[i];
+	    int k = 4 * id;
+	    setWall(i, coords[k], coords[k + 1], coords[k + 2], coords[k + 3]);
+	    wallIds[i] = id;
+	    for (int j = 0; j < RECENT; j++) {
+		if (recentIds[j] == id)
+		    recentWalls[j] = i;
+	    }
+	}
+	numWalls = n;
+	updateSkippedWalls();
+    }
+
+    /**
+     * Set the walls.
+     *
+     * @param walls the walls
+     */
+    void setWalls(Line[] walls) {
+	fixed = true;
+	maxWallCoord = 0;
+	Arrays.fill(recentWalls, -1);
+	for (int i = 0; i < walls.length; i++) {
+	    Point s = walls[i].getStart();
+	    Point e = walls[i].getEnd();
+	    setWall(i, s.getX(), s.getY(), e.getX(), e.getY());
+	    wallIds[i] = -1;
+	}
+	numWalls = walls.length;
+	updateSkippedWalls();
+    }
+
+    /**
+     * Set the forest squares.
+     *
+     * @param squares the forest squares, or <code>null</code> if there are none.
+     */
+    void setForestSquares(Location[] squares) {
+	int n = 0;
+	int max = 0;
+	if (squares != null) {
+	    for (Location sq : squares) {
+		forestCol[n] = sq.getColumn();
+		forestRow[n] = sq.getRow();
+		max = Math.max(max, Math.max(Math.abs(forestCol[n]), Math.abs(forestRow[n])));
+		n++;
+	    }
+	}
+	numForestSquares = n;
+	maxForestCoord = max + 1;
+    }
+
+    /**
+     * @return the largest of max and the absolute values of the coordinates.
+     */
+    private static double maxCoord(double max, double x1, double y1, double x2, double y2) {
+	return Math.max(Math.max(max, Math.max(Math.abs(x1), Math.abs(y1))),
+	                Math.max(Math.abs(x2), Math.abs(y2)));
+    }
+
+    /**
+     * @return Returns the number of walls.
+     */
+    int getNumWalls() {
+	return numWalls;
+    }
+
+    /**
+     * @return Returns the number of forest squares.
+     */
+    int getNumForestSquares() {
+	return numForestSquares;
+    }
+
+    /**
+     * Check if a line intersects or touches one of the walls.
+     * <p>
+     * This is <code>Line.intersectsOrCoincides</code> with the differences
+     * of the wall and line coordinates computed only once.
+     *
+     * @return <code>true</code> if the line from ax,ay to bx,by is blocked by a wall.
+     */
+    boolean isBlockedByWall(double ax, double ay, double bx, double by) {
+	final double err = Line.errorBound(maxCoord(maxWallCoord, ax, ay, bx, by));
+	for (int j = 0; j < RECENT; j++) {
+	    int i = recentWalls[j];
+	    if (i >= 0 && crossesWall(STRIDE * i, ax, ay, bx, by, err)) {
+		recentHit(j);
+		return true;
+	    }
+	}
+	// the other walls, without testing the recent ones again
+	int k = 0;
+	for (int s = 0; s <= numSkippedWalls; s++) {
+	    final int stop = STRIDE * skippedWalls[s];
+	    for (; k < stop; k += STRIDE) {
+		if (crossesWall(k, ax, ay, bx, by, err)) {
+		    recentMiss(k / STRIDE);
+		    return true;
+		}
+	    }
+	    k += STRIDE;
+	}
+	return false;
+    }
+
+    /**
+     * Check if a line intersects or touches the wall starting at walls[k].
+     */
+    private boolean crossesWall(int k, double ax, double ay, double bx, double by, double err) {
+	final double[] w = walls;
+	double dx = w[k + 4];
+	double dy = w[k + 5];
+	double d1 = w[k + 1] - ay;
+	double d2 = w[k] - ax;
+	double dx2 = bx - ax;
+	double dy2 = by - ay;
+	int r = Line.filteredIntersection(dy2 * dx - dx2 * dy, dx2 * d1 - dy2 * d2, dx * d1 - dy * d2,
+	                                  err, err, err);
+	return r == Line.INTERSECTING
+	    || (r == Line.UNCERTAIN
+	        && Line.intersectsOrCoincidesExact(w[k], w[k + 1], w[k + 2], w[k + 3], ax, ay, bx, by));
+    }
+
+    /**
+     * Move recently blocking wall j to the front.
+     */
+    private void recentHit(int j) {
+	recentHits++;
+	int id = recentIds[j];
+	int i = recentWalls[j];
+	for (; j > 0; j--) {
+	    recentIds[j] = recentIds[j - 1];
+	    recentWalls[j] = recentWalls[j - 1];
+	}
+	recentIds[0] = id;
+	recentWalls[0] = i;
+    }
+
+    /**
+     * Put wall i, which is not among the recently blocking walls, in
+     * front of them.
+     */
+    private void recentMiss(int i) {
+	recentMisses++;
+	for (int j = RECENT - 1; j > 0; j--) {
+	    recentIds[j] = recentIds[j - 1];
+	    recentWalls[j] = recentWalls[j - 1];
+	}
+	recentIds[0] = wallIds[i];
+	recentWalls[0] = i;
+	updateSkippedWalls();
+    }
+
+    /**
+     * Sort the recently blocking walls that are among the current walls
+     * into skippedWalls, for the scan over the other walls.
+     */
+    private void updateSkippedWalls() {
+	int n = 0;
+	for (int j = 0; j < RECENT; j++) {
+	    int i = recentWalls[j];
+	    if (i < 0)
+		continue;
+	    int p = n++;
+	    for (; p > 0 && skippedWalls[p - 1] > i; p--)
+		skippedWalls[p] = skippedWalls[p - 1];
+	    skippedWalls[p] = i;
+	}
+	skippedWalls[n] = numWalls;
+	numSkippedWalls = n;
+    }
+
+    /**
+     * Add the number of lines blocked by a recently blocking wall, and by
+     * another wall, to LosStatistics if it is enabled, and start counting
+     * again.
+     */
+    void flushStatistics() {
+	if (LosStatistics.isEnabled()) {
+	    if (recentHits != 0)
+		LosStatistics.wallCacheHits.addAndGet(recentHits);
+	    if (recentMisses != 0)
+		LosStatistics.wallCacheMisses.addAndGet(recentMisses);
+	}
+	recentHits = 0;
+	recentMisses = 0;
+    }
+
+    /**
+     * Check if a line crosses one of the forest squares.
+     *
+     * @return <code>true</code> if the line from ax,ay to bx,by is blocked by forest.
+     */
+    boolean isBlockedByForest(double ax, double ay, double bx, double by) {
+	final int n = numForestSquares;
+	if (n == 0)
+	    return false;
+	if (Point.compare(ax, ay, bx, by) > 0) {
+	    // ordered as in the Line constructor, for the same rounding
+	    double t = ax; ax = bx; bx = t;
+	    t = ay; ay = by; by = t;
+	}
+	final double dx = bx - ax;
+	final double dy = by - ay;
+	final double err = Line.errorBound(maxCoord(maxForestCoord, ax, ay, bx, by));
+	for (int i = 0; i < n; i++) {
+	    // as Line.intersectsSquareAsPerForest: the line must touch two edges
+	    int x = forestCol[i];
+	    int y = forestRow[i];
+	    int edges = 0;
+	    if (touches(ax, ay, bx, by, dx, dy, err, x, y, x + 1, y))
+		edges++;
+	    if (touches(ax, ay, bx, by, dx, dy, err, x, y, x, y + 1))
+		edges++;
+	    if (edges < 2 && touches(ax, ay, bx, by, dx, dy, err, x + 1, y, x + 1, y + 1))
+		edges++;
+	    if (edges == 1 && touches(ax, ay, bx, by, dx, dy, err, x, y + 1, x + 1, y + 1))
+		edges++;
+	    if (edges >= 2)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * <code>Line.intersectsOrCoincides</code> for the line from ax,ay to bx,by
+     * and the edge from x3,y3 to x4,y4, with the differences of the line
+     * coordinates and the error bound err given.
+     */
+    private static boolean touches(double ax, double ay, double bx, double by, double dx, double dy,
+                                   double err, int x3, int y3, int x4, int y4) {
+	double dx2 = x4 - x3;
+	double dy2 = y4 - y3;
+	double d1 = ay - y3;
+	double d2 = ax - x3;
+	int r = Line.filteredIntersection(dy2 * dx - dx2 * dy, dx2 * d1 - dy2 * d2, dx * d1 - dy * d2,
+	                                  err, err, err);
+	if (r == Line.UNCERTAIN)
+	    return Line.intersectsOrCoincidesExact(ax, ay, bx, by, x3, y3, x4, y4);
+	return r == Line.INTERSECTING;
+    }
+
+    /**
+     * Check if a line intersects or touches one of the walls.
+     * <p>
+     * Same as the <code>double</code> version, but with fixed-point
+     * coordinates. May only be used if <code>isFixed</code> is true.
+     *
+     * @return <code>true</code> if the line from ax,ay to bx,by is blocked by a wall.
+     */
+    boolean isBlockedByWall(long ax, long ay, long bx, long by) {
+	for (int j = 0; j < RECENT; j++) {
+	    int i = recentWalls[j];
+	    if (i >= 0 && crossesWall(STRIDE * i, ax, ay, bx, by)) {
+		recentHit(j);
+		return true;
+	    }
+	}
+	// the other walls, without testing the recent ones again
+	int k = 0;
+	for (int s = 0; s <= numSkippedWalls; s++) {
+	    final int stop = STRIDE * skippedWalls[s];
+	    for (; k < stop; k += STRIDE) {
+		if (crossesWall(k, ax, ay, bx, by)) {
+		    recentMiss(k / STRIDE);
+		    return true;
+		}
+	    }
+	    k += STRIDE;
+	}
+	return false;
+    }
+
+    /**
+     * Check if a line intersects or touches the wall starting at
+     * fixedWalls[k].
+     */
+    private boolean crossesWall(int k, long ax, long ay, long bx, long by) {
+	final long[] w = fixedWalls;
+	long dx = w[k + 4];
+	long dy = w[k + 5];
+	long d1 = w[k + 1] - ay;
+	long d2 = w[k] - ax;
+	long dx2 = bx - ax;
+	long dy2 = by - ay;
+	long denom = dy2 * dx - dx2 * dy;
+	long numUa = dx2 * d1 - dy2 * d2;
+	long numUb = dx * d1 - dy * d2;
+	if (denom > 0)
+	    return numUa >= 0 && numUa <= denom && numUb >= 0 && numUb <= denom;
+	if (denom < 0)
+	    return numUa <= 0 && numUa >= denom && numUb <= 0 && numUb >= denom;
+	return numUa == 0 && numUb == 0 && coincident(w[k], w[k + 1], w[k + 2], w[k + 3], ax, ay, bx, by);
+    }
+
+    /**
+     * Check if a line crosses one of the forest squares.
+     * <p>
+     * Same as the <code>double</code> version, but with fixed-point
+     * coordinates. As these are exact, a square can first be rejected
+     * cheaply if the line through a and b passes it by: then the distance
+     * of its center from the line is larger than half its extent across
+     * the line. Most squares near the line are rejected this way, so the
+     * four edge tests are left for the few squares it actually passes.
+     *
+     * @return <code>true</code> if the line from ax,ay to bx,by is blocked by forest.
+     */
+    boolean isBlockedByForest(long ax, long ay, long bx, long by) {
+	final int n = numForestSquares;
+	if (n == 0)
+	    return false;
+	if (ax > bx || (ax == bx && ay > by)) {
+	    long t = ax; ax = bx; bx = t;
+	    t = ay; ay = by; by = t;
+	}
+	final long dx = bx - ax;
+	final long dy = by - ay;
+	// twice the extent of a square across the line, and twice the
+	// offset from a to the center of a square at 0,0
+	final long extent = (Math.abs(dx) + Math.abs(dy)) << FIXED_SHIFT;
+	final long cx = FIXED_ONE - 2 * ax;
+	final long cy = FIXED_ONE - 2 * ay;
+	for (int i = 0; i < n; i++) {
+	    long x = (long) forestCol[i] << FIXED_SHIFT;
+	    long y = (long) forestRow[i] << FIXED_SHIFT;
+	    long dist = dx * (2 * y + cy) - dy * (2 * x + cx);
+	    if (dist > extent || dist < -extent)
+		continue;
+	    long x1 = x + FIXED_ONE;
+	    long y1 = y + FIXED_ONE;
+	    int edges = 0;
+	    if (touches(ax, ay, bx, by, dx, dy, x, y, x1, y))
+		edges++;
+	    if (touches(ax, ay, bx, by, dx, dy, x, y, x, y1))
+		edges++;
+	    if (edges < 2 && touches(ax, ay, bx, by, dx, dy, x1, y, x1, y1))
+		edges++;
+	    if (edges == 1 && touches(ax, ay, bx, by, dx, dy, x, y1, x1, y1))
+		edges++;
+	    if (edges >= 2)
+		return true;
+	}
+	return false;
+    }
+
+    /**
+     * <code>Line.intersectsOrCoincides</code> in fixed point. The start
+     * and end point of the first line must be ordered as in a Line.
+     *
+     * @return <code>true</code> if the lines intersect or coincide.
+     */
+    static boolean intersectsOrCoincides(long startX, long startY, long endX, long endY,
+                                         long x3, long y3, long x4, long y4) {
+	return touches(startX, startY, endX, endY, endX - startX, endY - startY, x3, y3, x4, y4);
+    }
+
+    private static boolean touches(long ax, long ay, long bx, long by, long dx, long dy,
+                                   long x3, long y3, long x4, long y4) {
+	long dx2 = x4 - x3;
+	long dy2 = y4 - y3;
+	long d1 = ay - y3;
+	long d2 = ax - x3;
+	long denom = dy2 * dx - dx2 * dy;
+	long numUa = dx2 * d1 - dy2 * d2;
+	long numUb = dx * d1 - dy * d2;
+	if (denom > 0)
+	    return numUa >= 0 && numUa <= denom && numUb >= 0 && numUb <= denom;
+	if (denom < 0)
+	    return numUa <= 0 && numUa >= denom && numUb <= 0 && numUb >= denom;
+	return numUa == 0 && numUb == 0 && coincident(ax, ay, bx, by, x3, y3, x4, y4);
+    }
+
+    /**
+     * Check if two collinear lines overlap, as <code>Line.intersectsOrCoincides</code>
+     * does. The start and end point of the first line must be ordered as in a Line.
+     */
+    private static boolean coincident(long x1, long y1, long x2, long y2,
+                                      long x3, long y3, long x4, long y4) {
+	if (x3 > x4 || (x3 == x4 && y3 > y4)) {
+	    long t = x3; x3 = x4; x4 = t;
+	    t = y3; y3 = y4; y4 = t;
+	}
+	long d1 = x1 * x1 + y1 * y1;
+	long d2 = x2 * x2 + y2 * y2;
+	long d3 = x3 * x3 + y3 * y3;
+	long d4 = x4 * x4 + y4 * y4;
+	long lo = (d1 > d3) ? d1 : d3;
+	long hi = (d2 < d4) ? d2 : d4;
+	return lo <= hi;
+    }
+
+}
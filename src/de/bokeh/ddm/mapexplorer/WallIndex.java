@@ -0,0 +1,373 @@
+/*
+ * This file is part of Map Explorer.
+ *
+ * Copyright © 2005-2007 Christoph Breitkopf
+ *
+ * This software is provided 'as-is', without any express or implied warranty.
+ * In no event will the authors be held liable for any damages arising from the
+ * use of this software.
+ *
+ * Permission is granted to anyone to use this software for any purpose, including
+ * commercial applications, and to alter it and redistribute it freely, subject to
+ * the following restrictions:
+ *
+ *   1. The origin of this software must not be misrepresented; you must not claim
+ *      that you wrote the original software. If you use this software in a product,
+ *      an acknowledgment in the product documentation would be appreciated but is
+ *      not required.
+ *
+ *   2. Altered source versions must be plainly marked as such, and must not be
+ *      misrepresented as being the original software.
+ *
+ *   3. This notice may not be removed or altered from any source distribution.
+ */
+
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+
+/**
+ * Walls and forest squares of a map, indexed by map square.
+ * <p>
+ * Each wall is numbered and entered in the bucket of every square it
+ * touches, including squares it only touches with an end point or along
+ * an edge. The walls relevant for a Rectangle can then be found by
+ * visiting only the squares in the rectangle.
+ * <p>
+ * Walls that lie on the grid lines of the map, with integer end points,
+ * are also stored as the unit edges they cover. The edges are kept as
+ * bitboards: one row of bits for each grid line, with bit x for the edge
+ * starting at x, see <code>getWallEdges</code>.
+ * <p>
+ * A WallIndex is immutable and can be shared between threads.
+ * Searches are done with a Search object, which is not thread-safe.
+ */
+public class WallIndex {
+
+    private static final int[] NO_WALLS = new int[0];
+
+    private final int width;
+    private final int height;
+    private final Line[] walls;
+    private final double[] coords;
+    private final boolean[] offGrid;
+    private final int edgeWords;
+    private final long[] horizontalEdges;
+    private final long[] verticalEdges;
+    private final int[][] squareWalls;
+    private final boolean[] forest;
+    private final int numForestSquares;
+
+    /**
+     * Create a new WallIndex.
+     *
+     * @param size size of the map
+     * @param walls the walls
+     * @param forestSquares the forest squares
+     */
+    public WallIndex(Dimension size, Set<Line> walls, Set<Location> forestSquares) {
+	this(size, walls, toBitSet(size, forestSquares));
+    }
+
+    /**
+     * Create a new WallIndex.
+     *
+     * @param size size of the map
+     * @param walls the walls
+     * @param forestSquares the forest squares, indexed by <code>row * width + column</code>
+     */
+    public WallIndex(Dimension size, Set<Line> walls, BitSet forestSquares) {
+	width = size.getWidth();
+	height = size.getHeight();
+	this.walls = walls.toArray(new Line[walls.size()]);
+	coords = new double[4 * this.walls.length];
+	for (int id = 0; id < this.walls.length; id++) {
+	    Line w = this.walls[id];
+	    coords[4 * id] = w.getStart().getX();
+	    coords[4 * id + 1] = w.getStart().getY();
+	    coords[4 * id + 2] = w.getEnd().getX();
+	    coords[4 * id + 3] = w.getEnd().getY();
+	}
+
+	offGrid = new boolean[this.walls.length];
+	edgeWords = (width + 64) >> 6;
+	horizontalEdges = new long[(height + 1) * edgeWords];
+	verticalEdges = new long[height * edgeWords];
+	for (int id = 0; id < this.walls.length; id++)
+	    offGrid[id] = !addEdges(coords[4 * id], coords[4 * id + 1], coords[4 * id + 2], coords[4 * id + 3]);
+
+	List<List<Integer>> buckets = new ArrayList<List<Integer>>(width * height);
+	for (int i = width * height; i > 0; i--)
+	    buckets.add(null);
+	for (int id = 0; id < this.walls.length; id++) {
+	    Line w = this.walls[id];
+	    Point s = w.getStart();
+	    Point e = w.getEnd();
+	    // square col touches [x0,x1] iff col <= x1 && col + 1 >= x0
+	    int col0 = Math.max(0, (int) Math.ceil(Math.min(s.getX(), e.getX()) - 1));
+	    int col1 = Math.min(width - 1, (int) Math.floor(Math.max(s.getX(), e.getX())));
+	    int row0 = Math.max(0, (int) Math.ceil(Math.min(s.getY(), e.getY()) - 1));
+	    int row1 = Math.min(height - 1, (int) Math.floor(Math.max(s.getY(), e.getY())));
+	    for (int row = row0; row <= row1; row++) {
+		for (int col = col0; col <= col1; col++) {
+		    // a diagonal wall does not touch all squares of its bounding box
+		    if (!w.isDiagonal() || w.intersects(new Rectangle(new Location(col, row)))) {
+			int i = row * width + col;
+			if (buckets.get(i) == null)
+			    buckets.set(i, new ArrayList<Integer>());
+			buckets.get(i).add(id);
+		    }
+		}
+	    }
+	}
+	squareWalls = new int[width * height][];
+	for (int i = 0; i < squareWalls.length; i++) {
+	    List<Integer> b = buckets.get(i);
+	    if (b == null) {
+		squareWalls[i] = NO_WALLS;
+	    } else {
+		squareWalls[i] = new int[b.size()];
+		for (int j = 0; j < b.size(); j++)
+		    squareWalls[i][j] = b.get(j);
+	    }
+	}
+
+	forest = new boolean[width * height];
+	for (int i = forestSquares.nextSetBit(0); i >= 0 && i < forest.length; i = forestSquares.nextSetBit(i + 1))
+	    forest[i] = true;
+	numForestSquares = forestSquares.cardinality();
+    }
+
+    /**
+     * Enter the unit edges covered by a wall.
+     * @return <code>false</code> if the wall does not lie on a grid line
+     *   or does not have integer end points.
+     */
+    private boolean addEdges(double x1, double y1, double x2, double y2) {
+	if (x1 != Math.rint(x1) || y1 != Math.rint(y1) || x2 != Math.rint(x2) || y2 != Math.rint(y2))
+	    return false;
+	if (x1 == x2 && y1 != y2) {
+	    int x = (int) x1;
+	    if (x < 0 || x > width)
+		return true;
+	    int y0 = Math.max(0, (int) Math.min(y1, y2));
+	    int y3 = Math.min(height, (int) Math.max(y1, y2));
+	    for (int y = y0; y < y3; y++)
+		verticalEdges[y * edgeWords + (x >> 6)] |= 1L << x;
+	    return true;
+	}
+	if (y1 == y2 && x1 != x2) {
+	    int y = (int) y1;
+	    if (y < 0 || y > height)
+		return true;
+	    int x0 = Math.max(0, (int) Math.min(x1, x2));
+	    int x3 = Math.min(width, (int) Math.max(x1, x2));
+	    for (int x = x0; x < x3; x++)
+		horizontalEdges[y * edgeWords + (x >> 6)] |= 1L << x;
+	    return true;
+	}
+	return false;
+    }
+
+    private static BitSet toBitSet(Dimension size, Set<Location> squares) {
+	BitSet r = new BitSet(size.getWidth() * size.getHeight());
+	for (Location sq : squares)
+	    r.set(sq.getRow() * size.getWidth() + sq.getColumn());
+	return r;
+    }
+
+    /**
+     * @return Returns the size of the map.
+     */
+    public Dimension getSize() {
+	return new Dimension(width, height);
+    }
+
+    /**
+     * @return Returns the number of walls.
+     */
+    public int getNumWalls() {
+	return walls.length;
+    }
+
+    /**
+     * Return the coordinates of all walls.
+     * <p>
+     * The coordinates of wall <code>id</code> are stored at
+     * <code>4 * id</code> as x1, y1, x2, y2. The array must not be modified.
+     *
+     * @return the packed wall coordinates
+     */
+    double[] getWallCoordinates() {
+	return coords;
+    }
+
+    /**
+     * Check if a unit edge of the grid is covered by a wall.
+     * <p>
+     * Only walls on the grid lines with integer end points are entered as
+     * edges, see <code>Search.isFoundOffGrid</code>.
+     *
+     * @param vertical <code>true</code> for the edge from (x,y) to (x,y+1),
+     *   <code>false</code> for the edge from (x,y) to (x+1,y)
+     * @param x the x coordinate of the lower end
+     * @param y the y coordinate of the lower end
+     * @return <code>true</code> if the edge is part of a wall.
+     */
+    boolean isWallEdge(boolean vertical, int x, int y) {
+	return x >= 0 && (getWallEdges(vertical, x, y) & 1) != 0;
+    }
+
+    /**
+     * Get 64 consecutive unit edges on a grid line as bits.
+     *
+     * @param vertical <code>true</code> for the edges from (x+i,y) to (x+i,y+1),
+     *   <code>false</code> for the edges from (x+i,y) to (x+i+1,y)
+     * @param x the x coordinate of the edge for bit 0, at least -63
+     * @param y the y coordinate of the lower end of the edges
+     * @return the edges, bit i is set if edge x+i is part of a wall.
+     */
+    long getWallEdges(boolean vertical, int x, int y) {
+	long[] edges = vertical ? verticalEdges : horizontalEdges;
+	if (y < 0 || (y + 1) * edgeWords > edges.length)
+	    return 0;
+	int base = y * edgeWords;
+	if (x < 0)
+	    return edges[base] << -x;
+	int w = x >> 6;
+	if (w >= edgeWords)
+	    return 0;
+	long r = edges[base + w] >>> x;
+	if ((x & 63) != 0 && w + 1 < edgeWords)
+	    r |= edges[base + w + 1] << -x;
+	return r;
+    }
+
+    /**
+     * @return Returns the number of forest squares.
+     */
+    public int getNumForestSquares() {
+	return numForestSquares;
+    }
+
+    /**
+     * Create a new Search for this index.
+     * @return a new Search
+     */
+    public Search newSearch() {
+	return new Search();
+    }
+
+    /**
+     * Finds the walls and forest squares in a rectangle.
+     * <p>
+     * Keeps the state needed to report each wall only once.
+     */
+    public class Search {
+
+	private final int[] seen;
+	private int stamp;
+	private final int[] found;
+	private int numFound;
+	private boolean foundDiagonal;
+	private boolean foundOffGrid;
+
+	private Search() {
+	    seen = new int[walls.length];
+	    found = new int[walls.length];
+	}
+
+	/**
+	 * Find all walls that intersect or touch a rectangle.
+	 * <p>
+	 * The result is the same as testing <code>Line.intersects(bounds)</code>
+	 * for all walls.
+	 *
+	 * @param bounds a Rectangle
+	 * @return the walls, possibly an empty array.
+	 */
+	public Line[] findWalls(Rectangle bounds) {
+	    if (++stamp == 0) {
+		Arrays.fill(seen, 0);
+		stamp = 1;
+	    }
+	    int n = 0;
+	    foundDiagonal = false;
+	    foundOffGrid = false;
+	    for (int row = bounds.getBottom(); row <= bounds.getTop(); row++) {
+		for (int col = bounds.getLeft(); col <= bounds.getRight(); col++) {
+		    for (int id : squareWalls[row * width + col]) {
+			if (seen[id] != stamp) {
+			    seen[id] = stamp;
+			    found[n++] = id;
+			}
+		    }
+		}
+	    }
+	    numFound = n;
+	    Line[] r = new Line[n];
+	    for (int i = 0; i < n; i++) {
+		Line w = walls[found[i]];
+		r[i] = w;
+		if (w.isDiagonal())
+		    foundDiagonal = true;
+		if (offGrid[found[i]])
+		    foundOffGrid = true;
+	    }
+	    return r;
+	}
+
+	/**
+	 * Copy the walls found by the last call to findWalls to a SegmentKernel.
+	 *
+	 * @param kernel a SegmentKernel with room for all walls of this index
+	 */
+	void copyFoundWalls(SegmentKernel kernel) {
+	    kernel.setWalls(coords, found, numFound);
+	}
+
+	/**
+	 * @return Returns <code>true</code> if the last call to findWalls
+	 *   found a diagonal wall.
+	 */
+	public boolean isFoundDiagonal() {
+	    return foundDiagonal;
+	}
+
+	/**
+	 * @return Returns <code>true</code> if the last call to findWalls
+	 *   found a wall that is not made of unit edges of the grid.
+	 */
+	public boolean isFoundOffGrid() {
+	    return foundOffGrid;
+	}
+
+	/**
+	 * Find all forest squares in a rectangle.
+	 *
+	 * @param bounds a Rectangle
+	 * @param exclude1 a Location that is not reported
+	 * @param exclude2 a Location that is not reported
+	 * @return the forest squares, or <code>null</code> if there are none.
+	 */
+	public Location[] findForestSquares(Rectangle bounds, Location exclude1, Location exclude2) {
+	    if (numForestSquares == 0)
+		return null;
+	    List<Location> r = null;
+	    for (int row = bounds.getBottom(); row <= bounds.getTop(); row++) {
+		for (int col = bounds.getLeft(); col <= bounds.getRight(); col++) {
+		    if (forest[row * width + col]) {
+			Location sq = new Location(col, row);
+			if (!sq.equals(exclude1) && !sq.equals(exclude2)) {
+			    if (r == null)
+				r = new ArrayList<Location>();
+			    r.add(sq);
+			}
+		    }
+		}
+	    }
+	    return r == null ? null : r.toArray(new Location[r.size()]);
+	}
+    }
+
+}
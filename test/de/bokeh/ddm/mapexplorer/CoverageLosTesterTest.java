@@ -0,0 +1,53 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.*;
+import java.util.logging.Logger;
+
+
+public class CoverageLosTesterTest extends ExactLosTesterCases {
+
+    @Override
+    LosTester newTester(Location from, Set<Line> walls, Set<Location> forest) {
+	return new CoverageLosTester(from, SIZE, walls, forest, Logger.getAnonymousLogger());
+    }
+
+    @Test
+    public void testCollinear() {
+	// a diagonal wall on the line through the source diagonal only
+	// blocks where it overlaps the line to the center of the square
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(2, 1, 2.5, 0.5));
+	Set<Location> forest = new HashSet<Location>();
+	assertEquals(0, test(new Location(1, 1), new Location(5, 4), walls, forest));
+	walls.add(new Line(1, 2, 1.5, 1.5));
+	walls.add(new Line(1, 3, 3, 3));
+	walls.add(new Line(3, 0, 3, 3));
+	assertTrue(test(new Location(1, 1), new Location(5, 4), walls, forest) < 0);
+    }
+
+    /**
+     * Same results as ExactLosTester on random maps, with diagonal walls
+     * and forest.
+     */
+    @Test
+    public void testSameAsExact() {
+	Random rnd = new Random(13);
+	for (int n = 0; n < 20; n++) {
+	    Set<Line> walls = TestMaps.randomWalls(rnd, SIZE, 6, 1);
+	    Set<Location> forest = new HashSet<Location>();
+	    for (int i = 0; i < 3; i++)
+		forest.add(new Location(rnd.nextInt(11), rnd.nextInt(5)));
+	    WallIndex index = new WallIndex(SIZE, walls, forest);
+	    Location from = new Location(rnd.nextInt(11), rnd.nextInt(5));
+	    LosTester exact = new ExactLosTester(from, index, Logger.getAnonymousLogger());
+	    LosTester coverage = new CoverageLosTester(from, index, Logger.getAnonymousLogger());
+	    for (Location to : new Rectangle(new Location(0, 0), new Location(10, 4)).getLocations()) {
+		assertEquals(walls + " " + forest + ": " + from + " -> " + to,
+		             exact.testLocation(to) >= 0, coverage.testLocation(to) >= 0);
+	    }
+	}
+    }
+
+}
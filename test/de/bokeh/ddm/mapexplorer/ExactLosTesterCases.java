@@ -0,0 +1,75 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.*;
+
+
+/**
+ * The tests shared by the LosTesters that find LOS exactly. A subclass
+ * runs them for one of the testers.
+ */
+public abstract class ExactLosTesterCases {
+
+    static final Dimension SIZE = new Dimension(11, 5);
+
+    /**
+     * @return a new tester of the kind under test.
+     */
+    abstract LosTester newTester(Location from, Set<Line> walls, Set<Location> forest);
+
+    int test(Location from, Location to, Set<Line> walls, Set<Location> forest) {
+	return newTester(from, walls, forest).testLocation(to);
+    }
+
+    @Test
+    public void testOpen() {
+	Set<Line> walls = new HashSet<Line>();
+	Set<Location> forest = new HashSet<Location>();
+	for (Location loc : new Rectangle(new Location(0, 0), new Location(10, 4)).getLocations()) {
+	    assertEquals(0, test(new Location(3, 2), loc, walls, forest));
+	}
+    }
+
+    @Test
+    public void testWall() {
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(5, 0, 5, 5));
+	Set<Location> forest = new HashSet<Location>();
+	assertEquals(0, test(new Location(0, 2), new Location(4, 4), walls, forest));
+	assertTrue(test(new Location(0, 2), new Location(6, 2), walls, forest) < 0);
+	// touching the end of a wall blocks LOS
+	walls.clear();
+	walls.add(new Line(5, 0, 5, 1));
+	walls.add(new Line(5, 2, 5, 5));
+	assertEquals(0, test(new Location(0, 1), new Location(10, 1), walls, forest));
+	walls.add(new Line(5, 1, 5, 2));
+	assertTrue(test(new Location(0, 1), new Location(10, 1), walls, forest) < 0);
+    }
+
+    @Test
+    public void testNarrowGap() {
+	// No line with the usual sampling offsets fits through this gap
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(5, 0, 5, 0.3));
+	walls.add(new Line(5, 0.3001, 5, 5));
+	Set<Location> forest = new HashSet<Location>();
+	assertEquals(0, test(new Location(0, 0), new Location(10, 0), walls, forest));
+	assertEquals(0, test(new Location(10, 0), new Location(0, 0), walls, forest));
+    }
+
+    @Test
+    public void testForest() {
+	Set<Line> walls = new HashSet<Line>();
+	Set<Location> forest = new HashSet<Location>();
+	for (int row = 0; row < 5; row++)
+	    forest.add(new Location(5, row));
+	assertTrue(test(new Location(2, 2), new Location(8, 2), walls, forest) < 0);
+	// forest does not block LOS into or out of the forest
+	assertEquals(0, test(new Location(2, 2), new Location(5, 2), walls, forest));
+	assertEquals(0, test(new Location(5, 2), new Location(6, 3), walls, forest));
+	forest.remove(new Location(5, 2));
+	assertEquals(0, test(new Location(2, 2), new Location(8, 2), walls, forest));
+    }
+
+}
@@ -0,0 +1,14 @@
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+
+public class ExactLosTesterTest extends ExactLosTesterCases {
+
+    @Override
+    LosTester newTester(Location from, Set<Line> walls, Set<Location> forest) {
+	return new ExactLosTester(from, SIZE, walls, forest, Logger.getAnonymousLogger());
+    }
+
+}
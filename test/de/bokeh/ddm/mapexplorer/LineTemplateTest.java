@@ -0,0 +1,91 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.*;
+
+
+public class LineTemplateTest {
+
+    private static final Dimension SIZE = new Dimension(9, 7);
+
+    private static boolean isClear(long[] clear, int line) {
+	return (clear[line >> 6] & (1L << line)) != 0;
+    }
+
+    @Test
+    public void testSameAsLines() {
+	final long[] offsets = LosTester.FIXED_TEST_OFFSETS_NORMAL;
+	final int n = offsets.length;
+	final double one = SegmentKernel.FIXED_ONE;
+	Random rnd = new Random(21);
+	for (int k = 0; k < 20; k++) {
+	    Set<Line> walls = new HashSet<Line>();
+	    for (int i = 0; i < 8; i++) {
+		int x = rnd.nextInt(10);
+		int y = rnd.nextInt(8);
+		if (rnd.nextBoolean())
+		    walls.add(new Line(x, y, x, y + 1));
+		else
+		    walls.add(new Line(x, y, x + 1, y));
+	    }
+	    WallIndex index = new WallIndex(SIZE, walls, new HashSet<Location>());
+	    Location a = new Location(rnd.nextInt(9), rnd.nextInt(7));
+	    Location b = new Location(rnd.nextInt(9), rnd.nextInt(7));
+	    for (int slope = 0; slope < 2; slope++) {
+		LineTemplate t = new LineTemplate(b.getColumn() - a.getColumn(), b.getRow() - a.getRow(),
+		                                  slope == 1, offsets);
+		LineTemplate r = new LineTemplate(a.getColumn() - b.getColumn(), a.getRow() - b.getRow(),
+		                                  slope == 1, offsets);
+		long[] clear = new long[(t.getNumLines() + 63) >> 6];
+		long[] reverse = new long[clear.length];
+		t.findClearLines(index, a.getColumn(), a.getRow(), clear);
+		r.findClearLines(index, b.getColumn(), b.getRow(), reverse);
+		for (int i = 0; i < n; i++) {
+		    for (int j = 0; j < n; j++) {
+			double x1 = a.getColumn() + offsets[i] / one;
+			double y1 = a.getRow() + (slope == 0 ? offsets[i] : one - offsets[i]) / one;
+			double x2 = b.getColumn() + offsets[j] / one;
+			double y2 = b.getRow() + (slope == 0 ? offsets[j] : one - offsets[j]) / one;
+			Line line = new Line(x1, y1, x2, y2);
+			boolean blocked = false;
+			for (Line w : walls)
+			    blocked |= w.intersectsOrCoincides(line);
+			String msg = walls + ": " + line;
+			assertEquals(msg, !blocked, isClear(clear, i * n + j));
+			assertEquals(msg, !blocked, isClear(reverse, j * n + i));
+		    }
+		}
+	    }
+	}
+    }
+
+
+    @Test
+    public void testCache() {
+	assertTrue(LineTemplate.MAX_CACHE_SIZE <= LineTemplate.DEFAULT_MAX_CACHE_SIZE);
+	LineTemplate.clearCache();
+	assertEquals(0, LineTemplate.getCacheSize());
+	LineTemplate t = LineTemplate.get(3, -2, false);
+	assertNotNull(t);
+	assertSame(t, LineTemplate.get(3, -2, false));
+	assertTrue(LineTemplate.getCacheSize() > 0);
+	LineTemplate.clearCache();
+	assertEquals(0, LineTemplate.getCacheSize());
+	assertNotSame(t, LineTemplate.get(3, -2, false));
+    }
+
+    /**
+     * Displacements that share the low bits must not share a template.
+     */
+    @Test
+    public void testCacheKey() {
+	LineTemplate.clearCache();
+	LineTemplate t = LineTemplate.get(1, 0, false);
+	assertNotSame(t, LineTemplate.get(0, 2048, false));
+	assertNotSame(t, LineTemplate.get(1, 0, true));
+	assertNotSame(t, LineTemplate.get(-1, 0, false));
+	assertSame(t, LineTemplate.get(1, 0, false));
+	LineTemplate.clearCache();
+    }
+}
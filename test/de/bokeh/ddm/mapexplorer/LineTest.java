@@ -80,6 +80,34 @@ public class LineTest {
 	assertTrue(new Line(27,1,27,2).intersectsOrCoincides(27, 2, 27, 0));
     }
 
+    /*
+     * Lines that end on a wall, or very close to it
+     */
+    @Test public void testIntersectsExact() {
+	// double arithmetic alone gets these wrong
+	assertFalse(Line.intersectsOrCoincides(2.5, 4, 3.5, 6.5, 17, 3, 2.707714841309717, 4.5192871032742925));
+	assertTrue(Line.intersectsOrCoincides(0, 3, 1.5, 7.5, 17.5, 17, 0.5673030679815829, 4.701909203944749));
+	// coincident, not in fixed point
+	assertTrue(new Line(0.1, 0.1, 0.7, 0.7).intersectsOrCoincides(0.3, 0.3, 0.9, 0.9));
+	assertFalse(new Line(0.1, 0.1, 0.2, 0.2).intersectsOrCoincides(0.3, 0.3, 0.9, 0.9));
+
+	java.util.Random rnd = new java.util.Random(3);
+	for (int i = 0; i < 100000; i++) {
+	    Line wall = new Line(rnd.nextInt(20) / 2.0, rnd.nextInt(20) / 2.0,
+	                         rnd.nextInt(20) / 2.0, rnd.nextInt(20) / 2.0);
+	    Point s = wall.getStart();
+	    Point e = wall.getEnd();
+	    double t = rnd.nextDouble();
+	    double x = s.getX() + t * (e.getX() - s.getX());
+	    double y = s.getY() + t * (e.getY() - s.getY());
+	    double x0 = rnd.nextInt(40) / 2.0;
+	    double y0 = rnd.nextInt(40) / 2.0;
+	    assertEquals(wall + " - " + x + "," + y,
+	                 Line.intersectsOrCoincidesExact(s.getX(), s.getY(), e.getX(), e.getY(), x0, y0, x, y),
+	                 wall.intersectsOrCoincides(x0, y0, x, y));
+	}
+    }
+
     /*
      * Test isHorizontal() and isVertical()
      */
@@ -0,0 +1,383 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class LosCalculatorTest {
+
+    private static Map makeMap() {
+	Map map = new Map(new Dimension(8, 6), "test");
+	map.addWall(new Line(3, 0, 3, 4));
+	map.addWall(new Line(5, 2, 8, 2));
+	return map;
+    }
+
+    private static LosMap computeLos(Map map, Creature c, boolean useTable) {
+	LosMap los = new LosMap(map.getDimension());
+	LosCalculator calc = new LosCalculator(1);
+	calc.setRandomTestsPerSquare(0);
+	calc.setUseLosTable(useTable);
+	calc.setMap(map, los);
+	Set<Creature> cs = new HashSet<Creature>();
+	cs.add(c);
+	calc.setCreatures(cs);
+	calc.computeLos();
+	calc.shutdown();
+	return los;
+    }
+
+    private static void assertSameLos(Map map, Creature c) {
+	LosMap expected = computeLos(map, c, false);
+	LosMap actual = computeLos(map, c, true);
+	for (int row = 0; row < map.getHeight(); row++) {
+	    for (int col = 0; col < map.getWidth(); col++) {
+		assertEquals(c.getLocation() + " -> " + new Location(col, row),
+		             expected.get(col, row), actual.get(col, row));
+	    }
+	}
+    }
+
+    @Test
+    public void testLosTable() {
+	Map map = makeMap();
+	for (Location loc : new Rectangle(new Location(0, 0), new Location(6, 4)).getLocations()) {
+	    Creature c = new Creature(CreatureSize.MEDIUM);
+	    c.setLocation(loc);
+	    assertSameLos(map, c);
+	    c = new Creature(CreatureSize.LARGE);
+	    c.setLocation(loc);
+	    assertSameLos(map, c);
+	}
+    }
+
+    @Test
+    public void testFootprint() {
+	Map map = makeMap();
+	map.get(2, 5).addFeature(MapFeature.FOREST);
+	for (CreatureSize size : new CreatureSize[] { CreatureSize.LARGE, CreatureSize.HUGE, CreatureSize.GARGANTUAN }) {
+	    for (Location loc : new Location[] { new Location(0, 0), new Location(4, 1), new Location(8 - size.sizeSquares(), 2) }) {
+		Creature c = new Creature(size);
+		c.setLocation(loc);
+		LosMap actual = computeLos(map, c, false);
+		// a target is visible if any square of the creature sees it
+		boolean[][] expected = new boolean[map.getWidth()][map.getHeight()];
+		for (Location sq : new Rectangle(loc, size.sizeSquares()).getLocations()) {
+		    LosMap los = computeLos(map, new Creature(CreatureSize.MEDIUM, sq), false);
+		    for (int row = 0; row < map.getHeight(); row++) {
+			for (int col = 0; col < map.getWidth(); col++)
+			    expected[col][row] |= los.get(col, row);
+		    }
+		}
+		for (int row = 0; row < map.getHeight(); row++) {
+		    for (int col = 0; col < map.getWidth(); col++) {
+			assertEquals(size + " at " + loc + " -> " + new Location(col, row),
+			             expected[col][row], actual.get(col, row));
+		    }
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void testCreatureLosCache() {
+	Map map = makeMap();
+	Creature a = new Creature(CreatureSize.MEDIUM, new Location(0, 0));
+	Creature b = new Creature(CreatureSize.LARGE, new Location(6, 3));
+	LosMap losA = computeLos(map, a, false);
+	LosMap losB = computeLos(map, b, false);
+
+	LosCalculator calc = new LosCalculator(1);
+	calc.setRandomTestsPerSquare(0);
+	LosMap los = new LosMap(map.getDimension());
+	calc.setMap(map, los);
+	Set<Creature> cs = new HashSet<Creature>();
+	cs.add(a);
+	calc.setCreatures(cs);
+	assertTrue(calc.computeLos());
+	cs.add(b);
+	assertTrue(calc.computeLos());
+	for (Location sq : new Rectangle(new Location(0, 0), new Location(7, 5)).getLocations())
+	    assertEquals(sq.toString(), losA.get(sq) || losB.get(sq), los.get(sq));
+
+	// the results are kept until the map is changed
+	map.get(1, 0).addFeature(MapFeature.ELEMENTAL_WALL);
+	cs.remove(b);
+	assertTrue(calc.computeLos());
+	assertTrue(los.get(2, 0));
+	map.changed();
+	assertTrue(calc.computeLos());
+	assertFalse(los.get(2, 0));
+	map.get(1, 0).removeFeature(MapFeature.ELEMENTAL_WALL);
+	calc.clearLosTables();
+	assertTrue(calc.computeLos());
+	assertTrue(los.get(2, 0));
+	map.addWall(new Line(1, 0, 1, 1));
+	assertTrue(calc.computeLos());
+	assertFalse(los.get(2, 0));
+	calc.shutdown();
+    }
+
+    @Test
+    public void testSymmetricLosTable() {
+	Map map = makeMap();
+	map.get(5, 4).addFeature(MapFeature.FOREST);
+	LosCalculator calc = new LosCalculator(1);
+	calc.setRandomTestsPerSquare(0);
+	calc.setMap(map, new LosMap(map.getDimension()));
+	LosTable expected = calc.getLosTable();
+	calc.clearLosTables();
+	calc.setSymmetric(true);
+	LosTable actual = calc.getLosTable();
+	calc.shutdown();
+	Location[] squares = new Rectangle(new Location(0, 0), new Location(7, 5)).getLocations();
+	for (Location a : squares) {
+	    for (Location b : squares) {
+		assertEquals(a + " -> " + b, expected.get(a, b), actual.get(a, b));
+	    }
+	}
+    }
+
+    @Test
+    public void testCancel() throws InterruptedException {
+	// many blocked pairs, so that building the table takes a while
+	final Map map = new Map(new Dimension(30, 21), "walls");
+	for (int x = 2; x < 30; x += 2)
+	    map.addWall(new Line(x, 1, x, 21));
+	final LosCalculator calc = new LosCalculator(1);
+	calc.setUseLosTable(true);
+	calc.setMap(map, new LosMap(map.getDimension()));
+	Creature c = new Creature(CreatureSize.MEDIUM);
+	c.setLocation(new Location(0, 0));
+	Set<Creature> cs = new HashSet<Creature>();
+	cs.add(c);
+	calc.setCreatures(cs);
+
+	final boolean[] result = { true };
+	Thread t = new Thread() {
+	    @Override
+	    public void run() {
+		result[0] = calc.computeLos();
+	    }
+	};
+	t.start();
+	Thread.sleep(100);
+	calc.cancel();
+	t.join(2000);
+	assertFalse(t.isAlive());
+	assertFalse(result[0]);
+
+	// no table was kept, and a cancel request before the start is not lost
+	assertFalse(calc.computeLos());
+	calc.resetCancelled();
+	calc.setUseLosTable(false);
+	assertTrue(calc.computeLos());
+	calc.shutdown();
+    }
+
+    /**
+     * After a cancelled computation returns, none of its tasks may still
+     * write into the LosMap, which the next computation reuses.
+     */
+    @Test
+    public void testCancelAndRestart() throws InterruptedException {
+	final Map map = new Map(new Dimension(30, 21), "walls");
+	for (int x = 3; x < 30; x += 3)
+	    map.addWall(new Line(x, 1, x - 1, 21));
+	Creature a = new Creature(CreatureSize.MEDIUM, new Location(15, 10));
+	Creature b = new Creature(CreatureSize.MEDIUM, new Location(0, 0));
+	LosMap expected = computeLos(map, b, false);
+
+	final LosCalculator calc = new LosCalculator(4);
+	calc.setRandomTestsPerSquare(0);
+	LosMap los = new LosMap(map.getDimension());
+	calc.setMap(map, los);
+	final Set<Creature> cs = new HashSet<Creature>();
+	for (int i = 0; i < 10; i++) {
+	    cs.clear();
+	    cs.add(a);
+	    calc.setCreatures(cs);
+	    Thread t = new Thread() {
+		@Override
+		public void run() {
+		    calc.computeLos();
+		}
+	    };
+	    t.start();
+	    while (t.isAlive() && calc.getTasksDone() == 0)
+		Thread.sleep(1);
+	    calc.cancel();
+	    t.join();
+	    calc.resetCancelled();
+	    cs.clear();
+	    cs.add(b);
+	    calc.setCreatures(cs);
+	    assertTrue(calc.computeLos());
+	    // a task of the cancelled computation still running would now
+	    // write into los
+	    Thread.sleep(20);
+	    for (Location sq : new Rectangle(new Location(0, 0), new Location(29, 20)).getLocations())
+		assertEquals(i + ": " + sq, expected.get(sq), los.get(sq));
+	}
+	calc.shutdown();
+    }
+
+    /**
+     * A LosCalculator that counts the LosTesters it creates.
+     */
+    private static class CountingLosCalculator extends LosCalculator {
+	final AtomicInteger testers = new AtomicInteger();
+
+	CountingLosCalculator(int numThreads) {
+	    super(numThreads);
+	}
+
+	@Override
+	LosTester newTester(Location source, WallIndex walls) {
+	    testers.incrementAndGet();
+	    return super.newTester(source, walls);
+	}
+    }
+
+    /**
+     * The tasks for the rows of the map share the testers of a large
+     * creature's squares, so each square gets at most one tester, and
+     * one umbra computation, per thread.
+     */
+    @Test
+    public void testFootprintTesters() {
+	// a colossal creature in a box: every square of the creature is
+	// tried for every target outside, in each of the 26 rows
+	Map map = new Map(new Dimension(10, 26), "box");
+	map.addWall(new Line(1, 1, 9, 1));
+	map.addWall(new Line(9, 1, 9, 9));
+	map.addWall(new Line(9, 9, 1, 9));
+	map.addWall(new Line(1, 9, 1, 1));
+	Creature c = new Creature(CreatureSize.COLOSSAL, new Location(2, 2));
+	int threads = 2;
+	CountingLosCalculator calc = new CountingLosCalculator(threads);
+	calc.setRandomTestsPerSquare(0);
+	LosMap los = new LosMap(map.getDimension());
+	calc.setMap(map, los);
+	Set<Creature> cs = new HashSet<Creature>();
+	cs.add(c);
+	calc.setCreatures(cs);
+	assertTrue(calc.computeLos());
+	calc.shutdown();
+	assertTrue(los.get(new Location(5, 5)));
+	assertFalse(los.get(new Location(5, 20)));
+	// the thread waiting for the tasks may run some of them, too
+	int squares = CreatureSize.COLOSSAL.sizeSquares() * CreatureSize.COLOSSAL.sizeSquares();
+	assertTrue(calc.testers.get() + " testers", calc.testers.get() <= squares * (threads + 1));
+    }
+
+    private static void toggleElementalWall(Map map, Rectangle r, boolean add) {
+	for (Location loc : r.getLocations()) {
+	    if (add)
+		map.get(loc).addFeature(MapFeature.ELEMENTAL_WALL);
+	    else
+		map.get(loc).removeFeature(MapFeature.ELEMENTAL_WALL);
+	}
+    }
+
+    @Test
+    public void testUpdateLos() {
+	Map map = makeMap();
+	map.get(6, 4).addFeature(MapFeature.SMOKE);
+	Rectangle[] changes = {
+	    new Rectangle(new Location(1, 2), 2),
+	    new Rectangle(new Location(5, 3), 2),
+	    new Rectangle(new Location(2, 4), 2)
+	};
+	for (boolean smoke : new boolean[] { false, true }) {
+	    for (Location loc : new Location[] { new Location(0, 0), new Location(4, 1), new Location(6, 0) }) {
+		Creature c = new Creature(CreatureSize.LARGE);
+		c.setLocation(loc);
+		Set<Creature> cs = new HashSet<Creature>();
+		cs.add(c);
+		LosMap los = new LosMap(map.getDimension());
+		LosCalculator calc = new LosCalculator(1);
+		calc.setRandomTestsPerSquare(0);
+		calc.setSmokeBlocksLos(smoke);
+		calc.setMap(map, los);
+		calc.setCreatures(cs);
+		assertTrue(calc.computeLos());
+		for (boolean add : new boolean[] { true, false }) {
+		    for (Rectangle r : changes) {
+			toggleElementalWall(map, r, add);
+			calc.clearLosTables();
+			assertTrue(calc.updateLos(r, add));
+			LosMap expected = new LosMap(map.getDimension());
+			calc.setMap(map, expected);
+			calc.computeLos();
+			calc.setMap(map, los);
+			for (Location sq : new Rectangle(new Location(0, 0), new Location(7, 5)).getLocations())
+			    assertEquals(loc + " -> " + sq, expected.get(sq), los.get(sq));
+		    }
+		}
+		calc.shutdown();
+	    }
+	}
+    }
+
+    @Test
+    public void testLosWithAndWithoutSmoke() {
+	Map map = makeMap();
+	map.get(1, 3).addFeature(MapFeature.SMOKE);
+	map.get(6, 4).addFeature(MapFeature.SMOKE);
+	for (boolean useTable : new boolean[] { false, true }) {
+	    for (Location loc : new Location[] { new Location(0, 2), new Location(4, 1), new Location(5, 3) }) {
+		Creature c = new Creature(CreatureSize.LARGE);
+		c.setLocation(loc);
+		Set<Creature> cs = new HashSet<Creature>();
+		cs.add(c);
+		LosCalculator calc = new LosCalculator(1);
+		calc.setRandomTestsPerSquare(0);
+		calc.setUseLosTable(useTable);
+		calc.setCreatures(cs);
+		LosMap los = new LosMap(map.getDimension());
+		LosMap smokeLos = new LosMap(map.getDimension());
+		calc.setMap(map, los);
+		assertTrue(calc.computeLos(smokeLos));
+		calc.clearLosTables();
+		LosMap expected = new LosMap(map.getDimension());
+		LosMap expectedSmoke = new LosMap(map.getDimension());
+		calc.setMap(map, expected);
+		calc.computeLos();
+		calc.setSmokeBlocksLos(true);
+		calc.setMap(map, expectedSmoke);
+		calc.computeLos();
+		calc.shutdown();
+		assertTrue(expected.getLosCount() > expectedSmoke.getLosCount());
+		for (Location sq : new Rectangle(new Location(0, 0), new Location(7, 5)).getLocations()) {
+		    assertEquals(loc + " -> " + sq, expected.get(sq), los.get(sq));
+		    assertEquals(loc + " -> " + sq + " (smoke)", expectedSmoke.get(sq), smokeLos.get(sq));
+		}
+	    }
+	}
+    }
+
+    @Test
+    public void testLosTableInvalidation() {
+	Map map = makeMap();
+	LosCalculator calc = new LosCalculator(1);
+	calc.setUseLosTable(true);
+	calc.setMap(map, new LosMap(map.getDimension()));
+	LosTable t = calc.getLosTable();
+	assertSame(t, calc.getLosTable());
+	assertTrue(t.isFor(map, false));
+	calc.clearLosTables();
+	assertNotSame(t, calc.getLosTable());
+	calc.setSmokeBlocksLos(true);
+	t = calc.getLosTable();
+	assertTrue(t.isFor(map, true));
+	map.changed();
+	assertFalse(t.isFor(map, true));
+	assertNotSame(t, calc.getLosTable());
+	calc.shutdown();
+    }
+
+}
@@ -0,0 +1,63 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.BitSet;
+
+
+public class LosMapTest {
+
+    @Test
+    public void testSetGet() {
+	LosMap los = new LosMap(new Dimension(30, 21));
+	assertEquals(0, los.getLosCount());
+	los.set(0, 0);
+	los.set(new Location(29, 20));
+	los.set(5, 3, true);
+	los.set(5, 3);
+	assertEquals(3, los.getLosCount());
+	assertTrue(los.get(0, 0));
+	assertTrue(los.get(29, 20));
+	assertTrue(los.get(new Location(5, 3)));
+	assertFalse(los.get(6, 3));
+	los.set(5, 3, false);
+	los.set(6, 3, false);
+	assertFalse(los.get(5, 3));
+	assertEquals(2, los.getLosCount());
+	BitSet b = new BitSet();
+	b.set(0);
+	b.set(64);
+	b.set(629);
+	los.setAll(b);
+	assertTrue(los.get(4, 2));
+	assertEquals(3, los.getLosCount());
+	assertEquals(b, los.getAll());
+	los.clear();
+	assertEquals(0, los.getLosCount());
+	assertFalse(los.get(0, 0));
+    }
+
+    @Test
+    public void testConcurrentSet() throws InterruptedException {
+	final LosMap los = new LosMap(new Dimension(30, 21));
+	Thread[] ts = new Thread[4];
+	for (int i = 0; i < ts.length; i++) {
+	    final int offset = i;
+	    ts[i] = new Thread() {
+		@Override
+		public void run() {
+		    for (int row = 0; row < 21; row++) {
+			for (int col = offset; col < 30; col += 2)
+			    los.set(col, row);
+		    }
+		}
+	    };
+	}
+	for (Thread t : ts)
+	    t.start();
+	for (Thread t : ts)
+	    t.join();
+	assertEquals(30 * 21, los.getLosCount());
+    }
+
+}
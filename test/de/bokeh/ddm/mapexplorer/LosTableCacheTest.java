@@ -0,0 +1,60 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+
+public class LosTableCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map makeMap() {
+	Map map = new Map(new Dimension(6, 4), "test");
+	map.addWall(new Line(3, 0, 3, 3));
+	return map;
+    }
+
+    @Test
+    public void testKey() {
+	String k = LosTableCache.getKey(makeMap(), false, LosAlgorithm.SAMPLING, 0);
+	assertEquals(k, LosTableCache.getKey(makeMap(), false, LosAlgorithm.SAMPLING, 0));
+	assertFalse(k.equals(LosTableCache.getKey(makeMap(), true, LosAlgorithm.SAMPLING, 0)));
+	assertFalse(k.equals(LosTableCache.getKey(makeMap(), false, LosAlgorithm.EXACT, 0)));
+	assertFalse(k.equals(LosTableCache.getKey(makeMap(), false, LosAlgorithm.SAMPLING, 100)));
+	Map m = makeMap();
+	m.get(1, 1).addFeature(MapFeature.ELEMENTAL_WALL);
+	assertFalse(k.equals(LosTableCache.getKey(m, false, LosAlgorithm.SAMPLING, 0)));
+	m = makeMap();
+	m.get(1, 1).addFeature(MapFeature.FOREST);
+	assertFalse(k.equals(LosTableCache.getKey(m, false, LosAlgorithm.SAMPLING, 0)));
+    }
+
+    @Test
+    public void testStoreLoad() {
+	Map map = makeMap();
+	LosTableCache cache = new LosTableCache(folder.getRoot());
+	assertNull(cache.load(map, false, LosAlgorithm.SAMPLING, 0));
+
+	LosCalculator calc = new LosCalculator(1);
+	calc.setRandomTestsPerSquare(0);
+	calc.setMap(map, new LosMap(map.getDimension()));
+	LosTable t = calc.getLosTable();
+	calc.shutdown();
+	cache.store(t, LosAlgorithm.SAMPLING, 0);
+
+	Map map2 = makeMap();
+	LosTable t2 = cache.load(map2, false, LosAlgorithm.SAMPLING, 0);
+	assertNotNull(t2);
+	assertTrue(t2.isFor(map2, false));
+	for (Location a : new Rectangle(new Location(0, 0), new Location(5, 3)).getLocations()) {
+	    for (Location b : new Rectangle(new Location(0, 0), new Location(5, 3)).getLocations()) {
+		assertEquals(t.get(a, b), t2.get(a, b));
+	    }
+	}
+	assertNull(cache.load(map2, true, LosAlgorithm.SAMPLING, 0));
+    }
+
+}
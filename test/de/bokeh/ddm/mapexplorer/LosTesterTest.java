@@ -2,7 +2,8 @@ package de.bokeh.ddm.mapexplorer;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
-import java.util.Arrays;
+import java.util.*;
+import java.util.logging.Logger;
 
 
 public class LosTesterTest {
@@ -71,4 +72,40 @@ public class LosTesterTest {
         0.5
     };
 
+    private static final Dimension SIZE = new Dimension(11, 5);
+
+    @Test
+    public void testHidden() {
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(5, 0, 5, 5));
+	LosTester t = new LosTester(new Location(1, 2), SIZE, walls, new HashSet<Location>(), 0, Logger.getAnonymousLogger());
+	for (Location loc : new Rectangle(new Location(0, 0), new Location(10, 4)).getLocations()) {
+	    assertEquals(loc.toString(), loc.getColumn() >= 5, t.isHidden(loc));
+	}
+	walls.clear();
+	walls.add(new Line(5, 1, 5, 4));
+	t = new LosTester(new Location(0, 2), SIZE, walls, new HashSet<Location>(), 0, Logger.getAnonymousLogger());
+	assertTrue(t.isHidden(new Location(10, 2)));
+	assertTrue(t.testLocation(new Location(10, 2)) < 0);
+	assertFalse(t.isHidden(new Location(6, 0)));
+	assertFalse(t.isHidden(new Location(4, 2)));
+    }
+
+    @Test
+    public void testHiddenIsBlocked() {
+	// a hidden square must not be visible along any line
+	Random rnd = new Random(19);
+	for (int n = 0; n < 50; n++) {
+	    Set<Line> walls = TestMaps.randomWalls(rnd, SIZE, 6, 0.5);
+	    Location from = new Location(rnd.nextInt(11), rnd.nextInt(5));
+	    LosTester t = new ExactLosTester(from, SIZE, walls, new HashSet<Location>(), Logger.getAnonymousLogger());
+	    for (Location to : new Rectangle(new Location(0, 0), new Location(10, 4)).getLocations()) {
+		if (!to.equals(from) && t.isHidden(to)) {
+		    assertTrue(walls + ": " + from + " -> " + to, t.testEdges(to, 0) < 0);
+		    assertTrue(walls + ": " + from + " -> " + to, t.testEdges(to, 1) < 0);
+		}
+	    }
+	}
+    }
+
 }
@@ -0,0 +1,61 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+
+public class MapGeometryTest {
+
+    private static Map makeMap() {
+	Map map = new Map(new Dimension(8, 6), "test");
+	map.addWall(new Line(3, 0, 3, 4));
+	map.get(5, 1).setSolid(true);
+	map.get(2, 4).addFeature(MapFeature.FOREST);
+	return map;
+    }
+
+    @Test
+    public void testSquares() {
+	Map map = makeMap();
+	map.get(6, 3).addFeature(MapFeature.SMOKE);
+	MapGeometry g = new MapGeometry(map);
+	assertEquals(map.getDimension(), g.getSize());
+	for (int row = 0; row < map.getHeight(); row++) {
+	    for (int col = 0; col < map.getWidth(); col++) {
+		MapSquare s = map.get(col, row);
+		assertEquals(s.isSolid(), g.isSolid(col, row));
+		assertEquals(s.has(MapFeature.FOREST), g.isForest(col, row));
+		assertEquals(s.has(MapFeature.SMOKE), g.isSmoke(col, row));
+	    }
+	}
+	assertEquals(map.getWalls(false), g.getWalls(false));
+	assertEquals(map.getWalls(true), g.getWalls(true));
+	assertEquals(1, g.getWallIndex(false).getNumForestSquares());
+	assertNotSame(g.getWallIndex(false), g.getWallIndex(true));
+    }
+
+    @Test
+    public void testNoSmoke() {
+	MapGeometry g = new MapGeometry(makeMap());
+	assertFalse(g.hasSmoke());
+	assertSame(g.getWalls(false), g.getWalls(true));
+	assertSame(g.getWallIndex(false), g.getWallIndex(true));
+    }
+
+    @Test
+    public void testVersion() {
+	Map map = makeMap();
+	MapGeometry g = new MapGeometry(map);
+	assertTrue(g.isFor(map));
+	assertFalse(g.isFor(makeMap()));
+	map.get(1, 1).addFeature(MapFeature.ELEMENTAL_WALL);
+	assertTrue(g.isFor(map));
+	map.changed();
+	assertFalse(g.isFor(map));
+	g = new MapGeometry(map);
+	assertEquals(map.getWalls(false), g.getWalls(false));
+	map.addWall(new Line(0, 5, 2, 5));
+	assertFalse(g.isFor(map));
+    }
+
+}
@@ -0,0 +1,235 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.io.File;
+import java.util.Random;
+
+
+public class SegmentKernelTest {
+
+    private static final Line[] WALLS = {
+	new Line(3, 0, 3, 4),
+	new Line(5, 2, 8, 2),
+	new Line(1, 5, 2, 6),
+	new Line(6, 4, 7, 3),
+	new Line(0, 3, 2, 3)
+    };
+
+    private static final Location[] FOREST = {
+	new Location(4, 5), new Location(1, 1)
+    };
+
+    private static double coord(Random rnd) {
+	// many points on the grid, to get touching and coincident lines
+	return rnd.nextBoolean() ? rnd.nextInt(9) : rnd.nextDouble() * 8;
+    }
+
+    @Test
+    public void testSameAsLine() {
+	SegmentKernel k = new SegmentKernel(WALLS.length, FOREST.length);
+	k.setWalls(WALLS);
+	k.setForestSquares(FOREST);
+	assertEquals(WALLS.length, k.getNumWalls());
+	assertEquals(FOREST.length, k.getNumForestSquares());
+	Random rnd = new Random(7);
+	for (int i = 0; i < 100000; i++) {
+	    double ax = coord(rnd), ay = coord(rnd), bx = coord(rnd), by = coord(rnd);
+	    boolean wall = false;
+	    for (Line w : WALLS)
+		wall |= w.intersectsOrCoincides(ax, ay, bx, by);
+	    boolean forest = false;
+	    Line line = new Line(ax, ay, bx, by);
+	    for (Location sq : FOREST)
+		forest |= line.intersectsSquareAsPerForest(sq);
+	    String msg = ax + "," + ay + " - " + bx + "," + by;
+	    assertEquals(msg, wall, k.isBlockedByWall(ax, ay, bx, by));
+	    assertEquals(msg, forest, k.isBlockedByForest(ax, ay, bx, by));
+	}
+    }
+
+    /**
+     * Lines that end on a wall or forest edge, or very close to it.
+     */
+    @Test
+    public void testNearlyTouching() {
+	SegmentKernel k = new SegmentKernel(WALLS.length, FOREST.length);
+	k.setWalls(WALLS);
+	k.setForestSquares(FOREST);
+	Random rnd = new Random(5);
+	for (int i = 0; i < 100000; i++) {
+	    Line w = WALLS[rnd.nextInt(WALLS.length)];
+	    Point s = w.getStart();
+	    Point e = w.getEnd();
+	    double t = rnd.nextDouble();
+	    double ax = coord(rnd), ay = coord(rnd);
+	    double bx = s.getX() + t * (e.getX() - s.getX());
+	    double by = s.getY() + t * (e.getY() - s.getY());
+	    if (rnd.nextBoolean()) {
+		// on the edge of a forest square instead
+		Location sq = FOREST[rnd.nextInt(FOREST.length)];
+		bx = sq.getColumn() + t;
+		by = sq.getRow() + (rnd.nextBoolean() ? 1 : 0);
+	    }
+	    boolean wall = false;
+	    for (Line ln : WALLS)
+		wall |= ln.intersectsOrCoincides(ax, ay, bx, by);
+	    boolean forest = false;
+	    Line line = new Line(ax, ay, bx, by);
+	    for (Location sq : FOREST)
+		forest |= line.intersectsSquareAsPerForest(sq);
+	    String msg = ax + "," + ay + " - " + bx + "," + by;
+	    assertEquals(msg, wall, k.isBlockedByWall(ax, ay, bx, by));
+	    assertEquals(msg, forest, k.isBlockedByForest(ax, ay, bx, by));
+	}
+    }
+
+    @Test
+    public void testWallIndex() {
+	java.util.Set<Line> walls = new java.util.HashSet<Line>(java.util.Arrays.asList(WALLS));
+	WallIndex index = new WallIndex(new Dimension(8, 6), walls, new java.util.HashSet<Location>());
+	WallIndex.Search search = index.newSearch();
+	Line[] found = search.findWalls(new Rectangle(new Location(4, 1), new Location(7, 2)));
+	SegmentKernel k = new SegmentKernel(index.getNumWalls(), 0);
+	search.copyFoundWalls(k);
+	assertEquals(found.length, k.getNumWalls());
+	k.setForestSquares(null);
+	assertEquals(0, k.getNumForestSquares());
+	assertTrue(k.isBlockedByWall(6, 1.5, 6, 2.5));
+	assertFalse(k.isBlockedByWall(4.5, 1.5, 4.5, 2.5));
+    }
+
+    /**
+     * The recently blocking walls are kept when the walls change, and
+     * must then only be used if they are still among the walls.
+     */
+    @Test
+    public void testRecentWalls() {
+	java.util.Set<Line> walls = new java.util.HashSet<Line>(java.util.Arrays.asList(WALLS));
+	WallIndex index = new WallIndex(new Dimension(8, 6), walls, new java.util.HashSet<Location>());
+	WallIndex.Search search = index.newSearch();
+	SegmentKernel k = new SegmentKernel(index.getNumWalls(), 0);
+	Random rnd = new Random(13);
+	long one = SegmentKernel.FIXED_ONE;
+	for (int n = 0; n < 200; n++) {
+	    Location a = new Location(rnd.nextInt(8), rnd.nextInt(6));
+	    Location b = new Location(rnd.nextInt(8), rnd.nextInt(6));
+	    Line[] found = search.findWalls(new Rectangle(a, b));
+	    search.copyFoundWalls(k);
+	    for (int i = 0; i < 200; i++) {
+		long ax = rnd.nextInt(65) * one / 8, ay = rnd.nextInt(49) * one / 8;
+		long bx = rnd.nextInt(65) * one / 8, by = rnd.nextInt(49) * one / 8;
+		double dax = (double) ax / one, day = (double) ay / one;
+		double dbx = (double) bx / one, dby = (double) by / one;
+		boolean wall = false;
+		for (Line w : found)
+		    wall |= w.intersectsOrCoincides(dax, day, dbx, dby);
+		String msg = dax + "," + day + " - " + dbx + "," + dby;
+		assertEquals(msg, wall, k.isBlockedByWall(dax, day, dbx, dby));
+		assertEquals(msg, wall, k.isBlockedByWall(ax, ay, bx, by));
+	    }
+	}
+    }
+
+    @Test
+    public void testFixedPoint() {
+	SegmentKernel k = new SegmentKernel(WALLS.length, FOREST.length);
+	k.setWalls(WALLS);
+	k.setForestSquares(FOREST);
+	assertTrue(k.isFixed());
+	Random rnd = new Random(11);
+	long one = SegmentKernel.FIXED_ONE;
+	for (int i = 0; i < 100000; i++) {
+	    // points on a 1/8 grid, to get touching and coincident lines
+	    long ax = rnd.nextInt(65) * one / 8, ay = rnd.nextInt(65) * one / 8;
+	    long bx = rnd.nextInt(65) * one / 8, by = rnd.nextInt(65) * one / 8;
+	    double dax = (double) ax / one, day = (double) ay / one;
+	    double dbx = (double) bx / one, dby = (double) by / one;
+	    String msg = dax + "," + day + " - " + dbx + "," + dby;
+	    assertEquals(msg, k.isBlockedByWall(dax, day, dbx, dby), k.isBlockedByWall(ax, ay, bx, by));
+	    assertEquals(msg, k.isBlockedByForest(dax, day, dbx, dby), k.isBlockedByForest(ax, ay, bx, by));
+	}
+
+	k.setWalls(new Line[] { new Line(0, 0, 1.0 / 3, 1) });
+	assertFalse(k.isFixed());
+    }
+
+    /**
+     * Only the squares near a line are tested for forest. This must give
+     * the same result as testing all of them, also when the kernel is
+     * refilled with other squares.
+     */
+    @Test
+    public void testManyForestSquares() {
+	SegmentKernel k = new SegmentKernel(0, 64);
+	Random rnd = new Random(23);
+	long one = SegmentKernel.FIXED_ONE;
+	for (int n = 0; n < 50; n++) {
+	    Location[] forest = new Location[1 + rnd.nextInt(60)];
+	    for (int i = 0; i < forest.length; i++)
+		forest[i] = new Location(rnd.nextInt(8), rnd.nextInt(8));
+	    k.setForestSquares(forest);
+	    for (int i = 0; i < 2000; i++) {
+		long ax = rnd.nextInt(65) * one / 8, ay = rnd.nextInt(65) * one / 8;
+		long bx = rnd.nextInt(65) * one / 8, by = rnd.nextInt(65) * one / 8;
+		double dax = (double) ax / one, day = (double) ay / one;
+		double dbx = (double) bx / one, dby = (double) by / one;
+		Line line = new Line(dax, day, dbx, dby);
+		boolean expected = false;
+		for (Location sq : forest)
+		    expected |= line.intersectsSquareAsPerForest(sq);
+		String msg = dax + "," + day + " - " + dbx + "," + dby;
+		assertEquals(msg, expected, k.isBlockedByForest(dax, day, dbx, dby));
+		assertEquals(msg, expected, k.isBlockedByForest(ax, ay, bx, by));
+	    }
+	}
+    }
+
+    /**
+     * The fixed-point test gives the same results for the sample lines
+     * of LosTester on all maps.
+     */
+    @Test
+    public void testFixedPointMaps() throws Exception {
+	File[] files = new File("lib").listFiles();
+	assertNotNull(files);
+	double[] offsets = LosTester.makeTestOffsets(32);
+	long one = SegmentKernel.FIXED_ONE;
+	Random rnd = new Random(3);
+	int numMaps = 0;
+	for (File f : files) {
+	    if (!f.getName().endsWith(".map"))
+		continue;
+	    numMaps++;
+	    Map map = new MapReader().read(f.getPath());
+	    MapGeometry g = new MapGeometry(map);
+	    for (boolean smoke : new boolean[] { false, true }) {
+		WallIndex index = g.getWallIndex(smoke);
+		WallIndex.Search search = index.newSearch();
+		SegmentKernel k = new SegmentKernel(index.getNumWalls(), index.getNumForestSquares());
+		for (int n = 0; n < 20; n++) {
+		    Location p = new Location(rnd.nextInt(map.getWidth()), rnd.nextInt(map.getHeight()));
+		    Location q = new Location(rnd.nextInt(map.getWidth()), rnd.nextInt(map.getHeight()));
+		    Rectangle bounds = new Rectangle(p, q);
+		    search.findWalls(bounds);
+		    search.copyFoundWalls(k);
+		    k.setForestSquares(search.findForestSquares(bounds, p, q));
+		    assertTrue(f.getName(), k.isFixed());
+		    for (double o1 : offsets) {
+			for (double o2 : offsets) {
+			    double ax = p.getColumn() + o1, ay = p.getRow() + o1;
+			    double bx = q.getColumn() + o2, by = q.getRow() + 1 - o2;
+			    long fax = Math.round(ax * one), fay = Math.round(ay * one);
+			    long fbx = Math.round(bx * one), fby = Math.round(by * one);
+			    String msg = f.getName() + ": " + ax + "," + ay + " - " + bx + "," + by;
+			    assertEquals(msg, k.isBlockedByWall(ax, ay, bx, by), k.isBlockedByWall(fax, fay, fbx, fby));
+			    assertEquals(msg, k.isBlockedByForest(ax, ay, bx, by), k.isBlockedByForest(fax, fay, fbx, fby));
+			}
+		    }
+		}
+	    }
+	}
+	assertTrue(numMaps > 0);
+    }
+
+}
@@ -0,0 +1,38 @@
+package de.bokeh.ddm.mapexplorer;
+
+import java.util.*;
+
+
+/**
+ * Random maps for the tests.
+ */
+final class TestMaps {
+
+    private TestMaps() {
+    }
+
+    /**
+     * Make walls of unit length at random squares: vertical, horizontal,
+     * or diagonal, with both coordinates growing by diagonal.
+     *
+     * @param rnd the random numbers
+     * @param size the size of the map
+     * @param n the number of walls
+     * @param diagonal the extent of the diagonal walls
+     * @return the walls
+     */
+    static Set<Line> randomWalls(Random rnd, Dimension size, int n, double diagonal) {
+	Set<Line> walls = new HashSet<Line>();
+	for (int i = 0; i < n; i++) {
+	    int x = rnd.nextInt(size.getWidth());
+	    int y = rnd.nextInt(size.getHeight());
+	    switch (rnd.nextInt(3)) {
+	    case 0: walls.add(new Line(x, y, x, y + 1)); break;
+	    case 1: walls.add(new Line(x, y, x + 1, y)); break;
+	    default: walls.add(new Line(x, y, x + diagonal, y + diagonal)); break;
+	    }
+	}
+	return walls;
+    }
+
+}
@@ -0,0 +1,98 @@
+package de.bokeh.ddm.mapexplorer;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import java.util.*;
+
+
+public class WallIndexTest {
+
+    private static final Dimension SIZE = new Dimension(10, 8);
+
+    private static Set<Line> makeWalls() {
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(3, 0, 3, 4));
+	walls.add(new Line(5, 2, 10, 2));
+	walls.add(new Line(1, 5, 4, 8));
+	walls.add(new Line(6.5, 4, 8, 5.5));
+	walls.add(new Line(7, 7, 7, 7.5));
+	walls.add(new Line(0, 0, 0, 8)); // on the border
+	return walls;
+    }
+
+    @Test
+    public void testFindWalls() {
+	Set<Line> walls = makeWalls();
+	WallIndex.Search search = new WallIndex(SIZE, walls, new HashSet<Location>()).newSearch();
+	Location[] squares = new Rectangle(new Location(0, 0), new Location(9, 7)).getLocations();
+	for (Location a : squares) {
+	    for (Location b : squares) {
+		Rectangle bounds = new Rectangle(a, b);
+		Set<Line> expected = new HashSet<Line>();
+		boolean diagonal = false;
+		for (Line w : walls) {
+		    if (w.intersects(bounds)) {
+			expected.add(w);
+			diagonal |= w.isDiagonal();
+		    }
+		}
+		Line[] found = search.findWalls(bounds);
+		assertEquals(expected.size(), found.length);
+		assertEquals(expected, new HashSet<Line>(Arrays.asList(found)));
+		assertEquals(diagonal, search.isFoundDiagonal());
+	    }
+	}
+    }
+
+    @Test
+    public void testFindForestSquares() {
+	Set<Location> forest = new HashSet<Location>();
+	forest.add(new Location(2, 2));
+	forest.add(new Location(4, 3));
+	forest.add(new Location(8, 6));
+	WallIndex.Search search = new WallIndex(SIZE, makeWalls(), forest).newSearch();
+	Location[] r = search.findForestSquares(new Rectangle(new Location(1, 1), new Location(5, 5)),
+	                                        new Location(1, 1), new Location(5, 5));
+	assertEquals(2, r.length);
+	r = search.findForestSquares(new Rectangle(new Location(2, 2), new Location(5, 5)),
+	                             new Location(2, 2), new Location(5, 5));
+	assertEquals(1, r.length);
+	assertEquals(new Location(4, 3), r[0]);
+	assertNull(search.findForestSquares(new Rectangle(new Location(5, 0), new Location(9, 4)),
+	                                    new Location(5, 0), new Location(9, 4)));
+    }
+
+    @Test
+    public void testWallEdges() {
+	WallIndex index = new WallIndex(SIZE, makeWalls(), new HashSet<Location>());
+	for (int y = 0; y < 4; y++)
+	    assertTrue(index.isWallEdge(true, 3, y));
+	assertFalse(index.isWallEdge(true, 3, 4));
+	assertFalse(index.isWallEdge(false, 3, 0));
+	for (int x = 5; x < 10; x++)
+	    assertTrue(index.isWallEdge(false, x, 2));
+	assertFalse(index.isWallEdge(false, 4, 2));
+	assertTrue(index.isWallEdge(true, 0, 7));
+	// not on the grid
+	assertFalse(index.isWallEdge(true, 7, 7));
+	WallIndex.Search search = index.newSearch();
+	search.findWalls(new Rectangle(new Location(2, 0), new Location(5, 3)));
+	assertFalse(search.isFoundOffGrid());
+	search.findWalls(new Rectangle(new Location(6, 6), new Location(8, 7)));
+	assertTrue(search.isFoundOffGrid());
+    }
+
+    @Test
+    public void testWallEdgeBits() {
+	Set<Line> walls = new HashSet<Line>();
+	walls.add(new Line(60, 1, 70, 1));
+	walls.add(new Line(0, 0, 0, 2));
+	WallIndex index = new WallIndex(new Dimension(100, 3), walls, new HashSet<Location>());
+	assertEquals(0x3ffL << 2, index.getWallEdges(false, 58, 1));
+	assertEquals(0x3ffL, index.getWallEdges(false, 60, 1));
+	assertEquals(0, index.getWallEdges(false, 58, 0));
+	assertEquals(2L, index.getWallEdges(true, -1, 1));
+	assertEquals(0, index.getWallEdges(true, 0, 2));
+    }
+
+}